@@ -5,14 +5,15 @@ import icrfgenerator.codebook.shared.CodebookStructureNode;
 import icrfgenerator.types.NodeType;
 import icrfgenerator.settings.GlobalSettings;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Codebook defaults extended by both openEHR and ART-DECOR codebooks
  */
 abstract public class CodebookDefault implements Codebook{
     protected final Map<String, CodebookItem> codebookItemMap = new HashMap<>();
+    // the files the codebook was created from; a snapshot of the codebook is only valid while these are unchanged
+    private final Set<SourceFile> sourceFiles = new LinkedHashSet<>();
 
     protected String codebookName;
     protected String extendedLanguage;
@@ -27,12 +28,44 @@ abstract public class CodebookDefault implements Codebook{
         this.datasetId = datasetId;
 
         // create top node for keeping track of the tree structure of the codebook
-        root =  new CodebookStructureNode(new CodebookItemArtDecor("-1", codebookName, codebookName, NodeType.GROUPITEM));
+        root = createRootNode();
 
         // retrieve whether for this codebook an non-leaf node is itself an actual item
         groupIsAnItem = GlobalSettings.groupIsAnItem(codebookName);
     }
 
+    /**
+     * create the top node of the codebook's tree structure
+     * @return the top node
+     */
+    private CodebookStructureNode createRootNode(){
+        return new CodebookStructureNode(new CodebookItemArtDecor("-1", codebookName, codebookName, NodeType.GROUPITEM));
+    }
+
+    /**
+     * keep track of a file the codebook is created from
+     * @param sourceFile the file
+     */
+    protected void addSourceFile(SourceFile sourceFile){
+        sourceFiles.add(sourceFile);
+    }
+
+    /**
+     * returns the files the codebook was created from
+     * @return the files the codebook was created from
+     */
+    public Set<SourceFile> getSourceFiles(){
+        return sourceFiles;
+    }
+
+    /**
+     * discard all items and the tree structure created so far, e.g. when a codebook has to be parsed again
+     */
+    protected void clearCodebook(){
+        codebookItemMap.clear();
+        root = createRootNode();
+    }
+
     @Override
     public CodebookItem getCodebookItem(String itemId){
         return codebookItemMap.get(itemId);
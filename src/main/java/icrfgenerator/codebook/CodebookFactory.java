@@ -10,7 +10,33 @@ import org.apache.logging.log4j.Logger;
 public class CodebookFactory {
     private static final Logger logger = LogManager.getLogger(CodebookFactory.class.getName());
 
+    /**
+     * returns a codebook, either restored from its snapshot or, if there is no valid snapshot, created from its
+     * source files. A newly created codebook is stored as a snapshot.
+     * @param datasetId        id of the dataset
+     * @param extendedLanguage language of the dataset, e.g. nl-NL
+     * @param codebookName     name of the codebook
+     * @return the codebook
+     */
     public static Codebook generateCodebook(String datasetId, String extendedLanguage, String codebookName){
+        Codebook codebook = CodebookSnapshot.load(datasetId, extendedLanguage, codebookName);
+        if(codebook==null){
+            codebook = createCodebook(datasetId, extendedLanguage, codebookName);
+            if(codebook instanceof CodebookDefault){
+                CodebookSnapshot.save((CodebookDefault) codebook);
+            }
+        }
+        return codebook;
+    }
+
+    /**
+     * creates a codebook from its source files
+     * @param datasetId        id of the dataset
+     * @param extendedLanguage language of the dataset, e.g. nl-NL
+     * @param codebookName     name of the codebook
+     * @return the codebook
+     */
+    private static Codebook createCodebook(String datasetId, String extendedLanguage, String codebookName){
         String source = GlobalSettings.getSource(codebookName);
         switch (source) {
             case "ARTDECOR" -> {
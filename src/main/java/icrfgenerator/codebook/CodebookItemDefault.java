@@ -2,17 +2,19 @@ package icrfgenerator.codebook;
 
 import icrfgenerator.types.NodeType;
 import icrfgenerator.types.OperatorType;
+import icrfgenerator.utils.CodeOrdering;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
  * default variables for all codebook items
+ * items can be written to and read from a codebook snapshot
  */
-abstract public class CodebookItemDefault implements CodebookItem{
+abstract public class CodebookItemDefault implements CodebookItem {
     protected String id;
     protected String itemName;
     protected String dataType;
@@ -34,6 +36,11 @@ abstract public class CodebookItemDefault implements CodebookItem{
 
     protected final Map<String, String> customPropertiesMap;
     protected final List<CodelistItem> codelistItemList = new ArrayList<>();
+    // case-insensitive index of the codelist and the codelist's codes and values, which are built when they are first
+    // needed, once the codelist is complete, and discarded whenever the codelist changes
+    private volatile Map<String, CodelistItem> codeIndex;
+    private volatile List<String> codelistCodes;
+    private volatile List<String> codelistValues;
 
     public CodebookItemDefault(String id, String itemName, String description, String dataType, NodeType nodeType, String code, String codeSystem, String codeDescription, Map<String, String> customPropertiesMap){
         this.id = id;
@@ -49,6 +56,89 @@ abstract public class CodebookItemDefault implements CodebookItem{
         this.customPropertiesMap = customPropertiesMap;
     }
 
+    /**
+     * create an item from a codebook snapshot
+     * reads what write stored, in the same order
+     * @param input the snapshot
+     * @throws IOException issue reading the snapshot or the snapshot is corrupt
+     */
+    protected CodebookItemDefault(DataInput input) throws IOException {
+        this(CodebookSnapshot.readString(input), CodebookSnapshot.readString(input), CodebookSnapshot.readString(input),
+                CodebookSnapshot.readString(input), CodebookSnapshot.readEnum(input, NodeType.class),
+                CodebookSnapshot.readString(input), CodebookSnapshot.readString(input), CodebookSnapshot.readString(input),
+                new HashMap<>());
+        min = CodebookSnapshot.readString(input);
+        minCheckOperator = CodebookSnapshot.readEnum(input, OperatorType.class);
+        max = CodebookSnapshot.readString(input);
+        maxCheckOperator = CodebookSnapshot.readEnum(input, OperatorType.class);
+        units = CodebookSnapshot.readString(input);
+        precision = CodebookSnapshot.readString(input);
+        codeDataType = CodebookSnapshot.readString(input);
+        int nrProperties = CodebookSnapshot.readCount(input);
+        for(int i=0; i<nrProperties; i++){
+            customPropertiesMap.put(CodebookSnapshot.readString(input), CodebookSnapshot.readString(input));
+        }
+        int nrCodelistItems = CodebookSnapshot.readCount(input);
+        for(int i=0; i<nrCodelistItems; i++){
+            codelistItemList.add(new CodelistItem(CodebookSnapshot.readString(input), CodebookSnapshot.readString(input),
+                    CodebookSnapshot.readString(input), CodebookSnapshot.readString(input)));
+        }
+    }
+
+    /**
+     * write the item to a codebook snapshot
+     * when the fields written here change, the snapshot version has to be increased
+     * @param output the snapshot
+     * @throws IOException issue writing the snapshot
+     */
+    void write(DataOutput output) throws IOException {
+        CodebookSnapshot.writeString(output, id);
+        CodebookSnapshot.writeString(output, itemName);
+        CodebookSnapshot.writeString(output, description);
+        CodebookSnapshot.writeString(output, dataType);
+        CodebookSnapshot.writeEnum(output, nodeType);
+        CodebookSnapshot.writeString(output, code);
+        CodebookSnapshot.writeString(output, codeSystem);
+        CodebookSnapshot.writeString(output, codeDescription);
+        CodebookSnapshot.writeString(output, min);
+        CodebookSnapshot.writeEnum(output, minCheckOperator);
+        CodebookSnapshot.writeString(output, max);
+        CodebookSnapshot.writeEnum(output, maxCheckOperator);
+        CodebookSnapshot.writeString(output, units);
+        CodebookSnapshot.writeString(output, precision);
+        CodebookSnapshot.writeString(output, codeDataType);
+        output.writeInt(customPropertiesMap.size());
+        for(Map.Entry<String, String> entry:customPropertiesMap.entrySet()){
+            CodebookSnapshot.writeString(output, entry.getKey());
+            CodebookSnapshot.writeString(output, entry.getValue());
+        }
+        output.writeInt(codelistItemList.size());
+        for(CodelistItem codelistItem:codelistItemList){
+            CodebookSnapshot.writeString(output, codelistItem.code);
+            CodebookSnapshot.writeString(output, codelistItem.textvalue);
+            CodebookSnapshot.writeString(output, codelistItem.codeSystem);
+            CodebookSnapshot.writeString(output, codelistItem.description);
+        }
+    }
+
+    /**
+     * create a copy of another item with a new id
+     * the copy shares the codelist items and the custom properties map with the other item
+     * @param id    id for the copy
+     * @param other the item to copy
+     */
+    protected CodebookItemDefault(String id, CodebookItemDefault other){
+        this(id, other.itemName, other.description, other.dataType, other.nodeType, other.code, other.codeSystem, other.codeDescription, other.customPropertiesMap);
+        this.min = other.min;
+        this.minCheckOperator = other.minCheckOperator;
+        this.max = other.max;
+        this.maxCheckOperator = other.maxCheckOperator;
+        this.units = other.units;
+        this.precision = other.precision;
+        this.codeDataType = other.codeDataType;
+        this.codelistItemList.addAll(other.codelistItemList);
+    }
+
     /**
      * returns the nodeType LEAFITEM, LEAFINFOITEM, GROUPITEM
      * @return the nodeType
@@ -149,19 +239,29 @@ abstract public class CodebookItemDefault implements CodebookItem{
     }
 
     /**
-     * returns a list representation of all the codes in the codelistItem list
-     * @return a list representation of all the codes in the codelistItem list
+     * returns an unmodifiable list representation of all the codes in the codelistItem list
+     * @return an unmodifiable list representation of all the codes in the codelistItem list
      */
     public List<String> getCodelistCodes(){
-        return codelistItemList.stream().map(t->t.code).collect(Collectors.toList());
+        List<String> codes = codelistCodes;
+        if(codes==null){
+            codes = Collections.unmodifiableList(codelistItemList.stream().map(t->t.code).collect(Collectors.toList()));
+            codelistCodes = codes;
+        }
+        return codes;
     }
 
     /**
-     * returns a list representation of all the values in the codelistItem list
-     * @return a list representation of all the values in the codelistItem list
+     * returns an unmodifiable list representation of all the values in the codelistItem list
+     * @return an unmodifiable list representation of all the values in the codelistItem list
      */
     public List<String> getCodelistValues(){
-        return codelistItemList.stream().map(t->t.textvalue).collect(Collectors.toList());
+        List<String> values = codelistValues;
+        if(values==null){
+            values = Collections.unmodifiableList(codelistItemList.stream().map(t->t.textvalue).collect(Collectors.toList()));
+            codelistValues = values;
+        }
+        return values;
     }
 
     /**
@@ -186,7 +286,7 @@ abstract public class CodebookItemDefault implements CodebookItem{
      * @return text value for the code
      */
     public String getValueForOptionCode(String code) {
-        return codelistItemList.stream().filter(t->t.code.equalsIgnoreCase(code)).findFirst().get().textvalue;
+        return getCodelistItem(code).textvalue;
     }
 
     /**
@@ -195,7 +295,7 @@ abstract public class CodebookItemDefault implements CodebookItem{
      * @return text value for the code
      */
     public String getDescriptionForOptionCode(String code) {
-        return codelistItemList.stream().filter(t->t.code.equalsIgnoreCase(code)).findFirst().get().description;
+        return getCodelistItem(code).description;
     }
 
     /**
@@ -204,7 +304,48 @@ abstract public class CodebookItemDefault implements CodebookItem{
      * @return codesystem for the code
      */
     public String getCodesystemForOptionCode(String code){
-        return codelistItemList.stream().filter(t->t.code.equalsIgnoreCase(code)).findFirst().get().codeSystem;
+        return getCodelistItem(code).codeSystem;
+    }
+
+    /**
+     * returns the codelist item for a code; codes are compared case-insensitive
+     * if several items have the same code, the first one in the codelist is returned
+     * @param code code
+     * @return the codelist item
+     * @throws NoSuchElementException if the codelist doesn't contain the code
+     */
+    private CodelistItem getCodelistItem(String code){
+        Map<String, CodelistItem> index = codeIndex;
+        if(index==null){
+            index = new HashMap<>();
+            for(CodelistItem codelistItem:codelistItemList){
+                index.putIfAbsent(getIndexKey(codelistItem.code), codelistItem);
+            }
+            codeIndex = index;
+        }
+        CodelistItem codelistItem = index.get(getIndexKey(code));
+        if(codelistItem==null){
+            throw new NoSuchElementException("Item "+id+" has no codelist item with code "+code);
+        }
+        return codelistItem;
+    }
+
+    /**
+     * returns the key of a code in the code index
+     * @param code code
+     * @return the key
+     */
+    private static String getIndexKey(String code){
+        return code.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * discards the code index and the lists of codes and values; subclasses that change the codelist must call this
+     */
+    protected void codelistChanged(){
+        codeIndex = null;
+        codelistCodes = null;
+        codelistValues = null;
     }
 
     /**
@@ -225,16 +366,12 @@ abstract public class CodebookItemDefault implements CodebookItem{
 
     /**
      * If we're adding a code, it's useful to know whether it's an integer code or a string code
-     * This method attempts to convert a code to integer and if that fails, we know we're dealing with strings.
+     * As soon as a code is not an integer, we know we're dealing with strings.
      * @param code the code that could be an int or a string
      */
     private void guessCodeType(String code){
-        if(codeDataType.equalsIgnoreCase("integer")) {
-            try {
-                Integer.parseInt(code);
-            } catch (NumberFormatException e) {
-                codeDataType = "string";
-            }
+        if(codeDataType.equalsIgnoreCase("integer") && !CodeOrdering.isInteger(code)) {
+            codeDataType = "string";
         }
     }
 
@@ -249,6 +386,7 @@ abstract public class CodebookItemDefault implements CodebookItem{
         // check whether we're dealing with integer or string codelist
         guessCodeType(code);
         codelistItemList.add(new CodelistItem(code, textvalue, codesystem, description));
+        codelistChanged();
     }
 
     /**
@@ -257,6 +395,7 @@ abstract public class CodebookItemDefault implements CodebookItem{
      */
     public void mergeCodebookItemCodeLists(CodebookItemDefault otherCodebookItem){
         this.codelistItemList.addAll(otherCodebookItem.codelistItemList);
+        codelistChanged();
     }
 
     @Override
@@ -355,7 +494,8 @@ abstract public class CodebookItemDefault implements CodebookItem{
      * sort the code list
      */
     public void sortCodeList(){
-        codelistItemList.sort(new SortByCode());
+        CodeOrdering.sort(codelistItemList, t->t.code);
+        codelistChanged();
     }
 
     /**
@@ -374,24 +514,4 @@ abstract public class CodebookItemDefault implements CodebookItem{
             this.description = description;
         }
     }
-
-    /**
-     * class for sorting codelist items by code
-     */
-    public class SortByCode implements Comparator<CodelistItem> {
-        @Override
-        public int compare(CodelistItem codelistItem1, CodelistItem codelistItem2) {
-            String code1 = codelistItem1.code;
-            String code2 = codelistItem2.code;
-            try{
-                int code1Int = Integer.parseInt(code1);
-                int code2Int = Integer.parseInt(code2);
-                if(code1Int>code2Int) return 1;
-                else if(code1Int<code2Int) return -1;
-                return 0;
-            } catch (Exception e) {
-                return codelistItem1.code.compareToIgnoreCase(codelistItem2.code);
-            }
-        }
-    }
 }
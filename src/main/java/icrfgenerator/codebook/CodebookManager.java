@@ -21,27 +21,75 @@ package icrfgenerator.codebook;
 
 import icrfgenerator.codebook.shared.CodebookStructureNode;
 
+import icrfgenerator.settings.GlobalSettings;
 import icrfgenerator.settings.runsettings.RunSettings;
 import icrfgenerator.utils.KeyUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * codebook manager keeps track of all the codebook that are loaded
  */
 public class CodebookManager {
+    private static final Logger logger = LogManager.getLogger(CodebookManager.class.getName());
     private static final CodebookManager codebookManager = new CodebookManager();
 
-    private final Map<String, CodebookMetaData> codebookMetaDataMap = new HashMap<>();
-    private final Map<String, Codebook> codebookItemsMap = new HashMap<>();
+    // filled by the loading threads, read by the FX thread
+    private final LoadingRegistry<CodebookMetaData> codebookMetaDataMap = new LoadingRegistry<>();
+    private final LoadingRegistry<Codebook> codebookItemsMap = new LoadingRegistry<>();
+    // loads the files codebooks refer to; shared by all codebooks that are built, so building several codebooks at
+    // once doesn't multiply the concurrent downloads. Idle threads are stopped, so the pool doesn't keep the
+    // program alive.
+    private final ThreadPoolExecutor prefetchExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "codebook-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static CodebookManager getInstance(){
         return codebookManager;
     }
 
-    private CodebookManager(){}
+    private CodebookManager(){
+        prefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * returns the pool of threads for loading the files a codebook refers to while the codebook is built
+     * the number of threads follows the codebook loading threads setting. Tasks run by the pool must not wait for
+     * other tasks of the pool.
+     * @return the pool of threads
+     */
+    public ExecutorService getPrefetchExecutor(){
+        int threads = Math.max(1, GlobalSettings.getCodebookLoadingThreads());
+        synchronized (prefetchExecutor) {
+            // the core size may never exceed the maximum size, so the order in which they're changed matters
+            if(threads>prefetchExecutor.getMaximumPoolSize()){
+                prefetchExecutor.setMaximumPoolSize(threads);
+                prefetchExecutor.setCorePoolSize(threads);
+            }
+            else if(threads<prefetchExecutor.getMaximumPoolSize()){
+                prefetchExecutor.setCorePoolSize(threads);
+                prefetchExecutor.setMaximumPoolSize(threads);
+            }
+        }
+        return prefetchExecutor;
+    }
 
     /**
      * Returns a single codebookItem for a specific item in codebook+datasetId+language
@@ -133,7 +181,19 @@ public class CodebookManager {
      * stores it in the map.
      */
     public void updateCodebookItems(){
+        updateCodebookItems((loaded, total) -> {});
+    }
+
+    /**
+     * Loads codebooks into memory.
+     * The codebooks that are not yet in the map are loaded concurrently by a bounded number of threads.
+     * After each codebook has been loaded, the progressListener is called with the number of codebooks
+     * loaded so far and the total number of codebooks that have to be loaded.
+     * @param progressListener listener which is informed about the progress
+     */
+    public void updateCodebookItems(BiConsumer<Integer, Integer> progressListener){
         RunSettings runSettings = RunSettings.getInstance();
+        Map<String, String []> codebookKeys = new LinkedHashMap<>();
         List<String> codebookNames = runSettings.getSelectedCodebooks();
         // for each selected codebook
         for(String codebookName:codebookNames){
@@ -141,10 +201,100 @@ public class CodebookManager {
             List<String> datasetIds = runSettings.getCodebookSelectedDatasetIds(codebookName);
             // for each selected datasetId
             for(String datasetId:datasetIds){
-                updateCodebookItemsLanguages(codebookName, datasetId, runSettings.getMainSimpleLanguage());
-                runSettings.getOtherSimpleLanguages().forEach(t->updateCodebookItemsLanguages(codebookName, datasetId, t));
+                addCodebookKey(codebookKeys, codebookName, datasetId, runSettings.getMainSimpleLanguage());
+                runSettings.getOtherSimpleLanguages().forEach(t->addCodebookKey(codebookKeys, codebookName, datasetId, t));
             }
         }
+        loadCodebooks(codebookKeys, progressListener);
+    }
+
+    /**
+     * adds the codebook + datasetId + language to the list of codebooks to load, if it isn't loaded yet
+     * @param codebookKeys   map with the codebooks to load
+     * @param codebookName   name of the codebook
+     * @param datasetId      id of the codebook
+     * @param simpleLanguage language of the codebook
+     */
+    private void addCodebookKey(Map<String, String []> codebookKeys, String codebookName, String datasetId, String simpleLanguage){
+        String key = KeyUtils.getSimpleLanguageKey(codebookName, datasetId, simpleLanguage);
+        if(!codebookItemsMap.isLoaded(key)){
+            codebookKeys.putIfAbsent(key, new String[]{codebookName, datasetId, simpleLanguage});
+        }
+    }
+
+    /**
+     * loads the codebooks using a bounded pool of threads and waits until all of them are done
+     * if one of the codebooks fails to load, the exception is rethrown once all loads have finished
+     * @param codebookKeys     map with the key and the codebook + datasetId + language to load
+     * @param progressListener listener which is informed about the progress
+     */
+    private void loadCodebooks(Map<String, String []> codebookKeys, BiConsumer<Integer, Integer> progressListener){
+        Map<String, Runnable> loaders = new LinkedHashMap<>();
+        for(Map.Entry<String, String []> entry:codebookKeys.entrySet()){
+            String [] codebookKey = entry.getValue();
+            loaders.put(entry.getKey(), () -> updateCodebookItemsLanguages(codebookKey[0], codebookKey[1], codebookKey[2]));
+        }
+
+        Map<String, Throwable> failures = runConcurrently(loaders, "codebook", progressListener);
+        if(!failures.isEmpty()){
+            throw new RuntimeException("Loading a codebook failed", failures.values().iterator().next());
+        }
+    }
+
+    /**
+     * runs loaders using a bounded pool of threads and waits until all of them are done
+     * a loader that fails doesn't affect the other loaders
+     * the pool is created for these loaders only; loaders which load further files, e.g. the codebooks an openEHR
+     * codebook refers to, use the shared prefetch pool, so the number of concurrent downloads is at most twice the
+     * number of loading threads rather than its square
+     * @param loaders          map with a key describing what is loaded and the loader
+     * @param description      description of what is loaded, used for logging
+     * @param progressListener listener which is informed about the number of loaders that finished and the total number of loaders
+     * @return map with the key and the exception of the loaders that failed
+     */
+    private Map<String, Throwable> runConcurrently(Map<String, Runnable> loaders, String description, BiConsumer<Integer, Integer> progressListener){
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        if(loaders.isEmpty()){
+            return failures;
+        }
+        int total = loaders.size();
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(total, GlobalSettings.getCodebookLoadingThreads()));
+        try {
+            Map<String, Future<?>> futures = new LinkedHashMap<>();
+            for(Map.Entry<String, Runnable> entry:loaders.entrySet()){
+                futures.put(entry.getKey(), executorService.submit(() -> {
+                    // failed loaders count as finished as well, so the progress always reaches the total
+                    boolean succeeded = false;
+                    try {
+                        entry.getValue().run();
+                        succeeded = true;
+                    } finally {
+                        int done = finished.incrementAndGet();
+                        if(succeeded) {
+                            logger.log(Level.INFO, "Loaded "+description+" "+done+"/"+total+": "+entry.getKey());
+                        }
+                        progressListener.accept(done, total);
+                    }
+                }));
+            }
+
+            for(Map.Entry<String, Future<?>> entry:futures.entrySet()){
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.log(Level.ERROR, "Loading "+description+" "+entry.getKey()+" failed: "+e.getCause().getMessage());
+                    failures.put(entry.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Loading the "+description+"s was interrupted", e);
+                }
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        return failures;
     }
 
     /**
@@ -161,23 +311,49 @@ public class CodebookManager {
         // "en" --> "en-US", "en-UK"
         String extendedLanguage = CodebookManager.getInstance().getDatasetExtendedLanguagesForSimpleLanguage(codebookName, datasetId, simpleLanguage).get(0);
 
-        // check whether this codebook already exists in the map
-        if(!codebookItemsMap.containsKey(key)){
-            // if it doesn't, add it
-            codebookItemsMap.put(key, CodebookFactory.generateCodebook(datasetId, extendedLanguage, codebookName));
-        }
+        // get the codebook from the map; if it isn't there yet, generate it
+        // a concurrent request for the same key waits for this generation instead of starting another one
+        codebookItemsMap.getOrLoad(key, () -> CodebookFactory.generateCodebook(datasetId, extendedLanguage, codebookName));
     }
 
     /**
      * Update the metadata for the selected codebooks. This metadata consists of the datasetIds and languages available
+     * @return the names of the codebooks for which the metadata could not be retrieved
      */
-    public void updateCodebooksMetadata(){
-        List<String> codebookNames = RunSettings.getInstance().getSelectedCodebooks();
-        for(String codebookName:codebookNames){
-            if(!codebookMetaDataMap.containsKey(codebookName)){
-                codebookMetaDataMap.put(codebookName, CodebookMetaDataFactory.getMetaData(codebookName));
+    public List<String> updateCodebooksMetadata(){
+        return updateCodebooksMetadata((loaded, total) -> {});
+    }
+
+    /**
+     * Update the metadata for the selected codebooks. This metadata consists of the datasetIds and languages available
+     * The metadata of the codebooks is retrieved concurrently by a bounded number of threads. A codebook for which
+     * the metadata can't be retrieved doesn't prevent the metadata of the other codebooks from being retrieved.
+     * After the metadata of each codebook has been retrieved, the progressListener is called with the number of
+     * codebooks done so far and the total number of codebooks.
+     * @param progressListener listener which is informed about the progress
+     * @return the names of the codebooks for which the metadata could not be retrieved
+     */
+    public List<String> updateCodebooksMetadata(BiConsumer<Integer, Integer> progressListener){
+        Map<String, Runnable> loaders = new LinkedHashMap<>();
+        for(String codebookName:RunSettings.getInstance().getSelectedCodebooks()){
+            if(!codebookMetaDataMap.isLoaded(codebookName)){
+                loaders.put(codebookName, () -> {
+                    if(codebookMetaDataMap.getOrLoad(codebookName, () -> CodebookMetaDataFactory.getMetaData(codebookName))==null){
+                        throw new RuntimeException("No metadata available for codebook "+codebookName);
+                    }
+                });
             }
         }
+        return new ArrayList<>(runConcurrently(loaders, "metadata of codebook", progressListener).keySet());
+    }
+
+    /**
+     * returns whether the metadata of a codebook has been retrieved
+     * @param codebookName name of the codebook
+     * @return true/false
+     */
+    public boolean hasCodebookMetaData(String codebookName){
+        return codebookMetaDataMap.isLoaded(codebookName);
     }
 
     /**
@@ -189,6 +365,17 @@ public class CodebookManager {
         return codebookMetaDataMap.get(codebookName).getCodebookDatasetIdentifiers();
     }
 
+    /**
+     * returns whether the metadata of a codebook contains a dataset
+     * @param codebookName name of the codebook
+     * @param datasetIdentifier identifier of the dataset
+     * @return true/false
+     */
+    public boolean hasDatasetMetaData(String codebookName, String datasetIdentifier){
+        CodebookMetaData codebookMetaData = codebookMetaDataMap.get(codebookName);
+        return codebookMetaData!=null && codebookMetaData.getCodebookDatasetIdentifiers().contains(datasetIdentifier);
+    }
+
     /**
      * returns the version of a codebook dataset
      * @param codebookName name of the codebook
@@ -5,10 +5,13 @@ import icrfgenerator.settings.LanguageHelper;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 abstract public class CodebookMetaDataDefault implements CodebookMetaData {
-    protected Map<String, DatasetMetaData> idToDatasetMetaDataMap = new HashMap<>();
+    // the metadata may be replaced in the background while it is being used; a replacement is a new, complete map,
+    // so readers see either the old or the new metadata
+    protected volatile Map<String, DatasetMetaData> idToDatasetMetaDataMap = new ConcurrentHashMap<>();
     protected String codebookName;
     private final SimpleDateFormat dateFormatter1;
 
@@ -17,6 +20,15 @@ abstract public class CodebookMetaDataDefault implements CodebookMetaData {
         this.codebookName = codebookName;
     }
 
+    /**
+     * replaces the metadata of all datasets at once, e.g. when an updated list of datasets was retrieved
+     * datasets which are no longer in the list are removed
+     * @param datasetMetaDataMap the metadata of the datasets; id --> metadata
+     */
+    protected void replaceDatasetMetaData(Map<String, DatasetMetaData> datasetMetaDataMap){
+        idToDatasetMetaDataMap = new ConcurrentHashMap<>(datasetMetaDataMap);
+    }
+
     /**
      * get a (sorted) list of the dataset identifiers present for this codebook
      * @return a sorted list with dataset identifiers
@@ -160,9 +172,10 @@ abstract public class CodebookMetaDataDefault implements CodebookMetaData {
 
         /**
          * returns the dataset effective date
+         * synchronized, as codebooks are loaded concurrently and the date formatter isn't thread-safe
          * @return the dataset effective date
          */
-        String getEffectiveDate() {
+        synchronized String getEffectiveDate() {
             return dateFormatter2.format(effectiveDate);
         }
 
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2019 VUmc/KWF TraIT2Health-RI
+ *
+ * This file is part of iCRFGenerator
+ *
+ * iCRFGenerator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * iCRFGenerator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with iCRFGenerator. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package icrfgenerator.codebook;
+
+import icrfgenerator.codebook.shared.CodebookStructureNode;
+import icrfgenerator.settings.GlobalSettings;
+import icrfgenerator.utils.CacheManifest;
+import icrfgenerator.utils.KeyUtils;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * binary snapshot of a codebook's tree structure and items
+ * loading a snapshot is a lot faster than parsing the codebook's source files again, but a snapshot is
+ * only used if the source files it was created from have not changed since. The source files are retrieved
+ * as usual before they are compared, so a snapshot of an outdated source file is never used.
+ * Snapshots are stored in the cache directory and are part of the cache manifest, so they are removed along
+ * with the other cached files when the cache grows beyond its maximum size.
+ * The snapshot is written field by field in its own format rather than with Java serialization, so reading a
+ * snapshot only ever creates codebook items and tree nodes, whatever the file contains. The layout is:
+ * header (magic number, snapshot version, key), source files (path, uri, dataset id, hash), items, the tree with
+ * each node referring to its item by index, and the codebook's item map, again referring to the items by index.
+ */
+class CodebookSnapshot {
+    private static final Logger logger = LogManager.getLogger(CodebookSnapshot.class.getName());
+    private static final int magicNumber = 0x69435246;
+    // increase when the layout of the snapshot changes, including the fields written by CodebookItemDefault
+    private static final int snapshotVersion = 3;
+    // limits which keep a corrupt snapshot from causing huge allocations or a stack overflow
+    private static final int maxStringLength = 16*1024*1024;
+    private static final int maxTreeDepth = 1000;
+
+    private final String key;
+    private final Map<SourceFile, String> sourceFileHashes;
+    private final CodebookStructureNode root;
+    private final Map<String, CodebookItem> codebookItemMap;
+
+    private CodebookSnapshot(String key, Map<SourceFile, String> sourceFileHashes, CodebookStructureNode root, Map<String, CodebookItem> codebookItemMap){
+        this.key = key;
+        this.sourceFileHashes = sourceFileHashes;
+        this.root = root;
+        this.codebookItemMap = codebookItemMap;
+    }
+
+    /**
+     * attempts to load a codebook from its snapshot
+     * @param datasetId        id of the dataset
+     * @param extendedLanguage language of the dataset
+     * @param codebookName     name of the codebook
+     * @return the codebook or null if there is no valid snapshot
+     */
+    static Codebook load(String datasetId, String extendedLanguage, String codebookName){
+        String key = KeyUtils.getKey(codebookName, datasetId, extendedLanguage);
+        File snapshotFile = getSnapshotFile(key);
+        if(!snapshotFile.exists()){
+            return null;
+        }
+
+        try {
+            CodebookSnapshot snapshot = read(snapshotFile);
+            if(snapshot==null || !snapshot.isValid(key, t->t.retrieve(codebookName))){
+                logger.log(Level.INFO, "The snapshot of "+key+" is outdated");
+                return null;
+            }
+            logger.log(Level.INFO, "Using the snapshot of "+key);
+            CacheManifest.getInstance().setAccessed(snapshotFile);
+            return new SnapshotCodebook(datasetId, extendedLanguage, codebookName, snapshot);
+        } catch (IOException e) {
+            // e.g. a snapshot written by another version of the program; we'll simply create the codebook again
+            logger.log(Level.WARN, "Unable to read the snapshot of "+key+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * stores a snapshot of a codebook
+     * failing to store a snapshot is not fatal, as the codebook itself is fine
+     * @param codebook the codebook
+     */
+    static void save(CodebookDefault codebook){
+        String key = KeyUtils.getKey(codebook.codebookName, codebook.datasetId, codebook.extendedLanguage);
+        try {
+            File snapshotFile = getSnapshotFile(key);
+            create(key, codebook.getSourceFiles(), codebook.root, codebook.codebookItemMap).write(snapshotFile);
+            CacheManifest.getInstance().setAccessed(snapshotFile);
+            CacheManifest.getInstance().evict(GlobalSettings.getCacheMaxSize());
+        } catch (IOException e) {
+            logger.log(Level.WARN, "Unable to store a snapshot of "+key+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * creates a snapshot of a codebook's tree structure and items
+     * @param key             codebook + datasetId + language
+     * @param sourceFiles     the files the codebook was created from
+     * @param root            root of the codebook's tree
+     * @param codebookItemMap the codebook's items
+     * @return the snapshot
+     * @throws IOException issue reading a source file
+     */
+    static CodebookSnapshot create(String key, Collection<SourceFile> sourceFiles, CodebookStructureNode root, Map<String, CodebookItem> codebookItemMap) throws IOException {
+        Map<SourceFile, String> sourceFileHashes = new LinkedHashMap<>();
+        for(SourceFile sourceFile:sourceFiles){
+            sourceFileHashes.put(sourceFile, getHash(sourceFile.getFile()));
+        }
+        return new CodebookSnapshot(key, sourceFileHashes, root, new HashMap<>(codebookItemMap));
+    }
+
+    /**
+     * reads a snapshot from a file
+     * @param snapshotFile the file
+     * @return the snapshot or null if it was written with another layout
+     * @throws IOException issue reading the file or the file is corrupt
+     */
+    static CodebookSnapshot read(File snapshotFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if(input.readInt()!=magicNumber || input.readInt()!=snapshotVersion){
+                return null;
+            }
+            String key = readString(input);
+
+            Map<SourceFile, String> sourceFileHashes = new LinkedHashMap<>();
+            int nrSourceFiles = readCount(input);
+            for(int i=0; i<nrSourceFiles; i++){
+                SourceFile sourceFile = new SourceFile(readString(input), readString(input), readString(input));
+                sourceFileHashes.put(sourceFile, readString(input));
+            }
+
+            List<CodebookItem> items = new ArrayList<>();
+            int nrItems = readCount(input);
+            for(int i=0; i<nrItems; i++){
+                items.add(new SnapshotItem(input));
+            }
+
+            CodebookStructureNode root = readNode(input, items, 0);
+
+            Map<String, CodebookItem> codebookItemMap = new HashMap<>();
+            int nrMapEntries = readCount(input);
+            for(int i=0; i<nrMapEntries; i++){
+                codebookItemMap.put(readString(input), getItem(items, input.readInt()));
+            }
+            return new CodebookSnapshot(key, sourceFileHashes, root, codebookItemMap);
+        }
+    }
+
+    /**
+     * writes the snapshot to a file
+     * a temporary file is written first, so a snapshot is either complete or absent
+     * @param snapshotFile the file
+     * @throws IOException issue writing the file
+     */
+    void write(File snapshotFile) throws IOException {
+        // items are written once, also when they're used by several nodes, and referred to by their index
+        Map<CodebookItem, Integer> itemIndexes = new IdentityHashMap<>();
+        List<CodebookItemDefault> items = new ArrayList<>();
+        addItems(root, itemIndexes, items);
+        for(CodebookItem codebookItem:codebookItemMap.values()){
+            addItem(codebookItem, itemIndexes, items);
+        }
+
+        File tmpFile = new File(snapshotFile.getPath()+".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            output.writeInt(magicNumber);
+            output.writeInt(snapshotVersion);
+            writeString(output, key);
+
+            output.writeInt(sourceFileHashes.size());
+            for(Map.Entry<SourceFile, String> entry:sourceFileHashes.entrySet()){
+                writeString(output, entry.getKey().getPath());
+                writeString(output, entry.getKey().getUri());
+                writeString(output, entry.getKey().getDatasetId());
+                writeString(output, entry.getValue());
+            }
+
+            output.writeInt(items.size());
+            for(CodebookItemDefault item:items){
+                item.write(output);
+            }
+
+            writeNode(output, root, itemIndexes);
+
+            output.writeInt(codebookItemMap.size());
+            for(Map.Entry<String, CodebookItem> entry:codebookItemMap.entrySet()){
+                writeString(output, entry.getKey());
+                output.writeInt(itemIndexes.get(entry.getValue()));
+            }
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * adds the items of a node and its descendants to the items to write
+     * @param node        the node
+     * @param itemIndexes item --> index of the items added so far
+     * @param items       the items added so far
+     * @throws IOException an item can't be stored in a snapshot
+     */
+    private static void addItems(CodebookStructureNode node, Map<CodebookItem, Integer> itemIndexes, List<CodebookItemDefault> items) throws IOException {
+        addItem(node.getValue(), itemIndexes, items);
+        for(CodebookStructureNode child:node.getChildren()){
+            addItems(child, itemIndexes, items);
+        }
+    }
+
+    /**
+     * adds an item to the items to write, unless it was added already
+     * @param codebookItem the item
+     * @param itemIndexes  item --> index of the items added so far
+     * @param items        the items added so far
+     * @throws IOException the item can't be stored in a snapshot
+     */
+    private static void addItem(CodebookItem codebookItem, Map<CodebookItem, Integer> itemIndexes, List<CodebookItemDefault> items) throws IOException {
+        if(itemIndexes.containsKey(codebookItem)){
+            return;
+        }
+        if(!(codebookItem instanceof CodebookItemDefault item)){
+            throw new IOException("Unsupported codebook item "+codebookItem);
+        }
+        itemIndexes.put(codebookItem, items.size());
+        items.add(item);
+    }
+
+    /**
+     * writes a node and its descendants
+     * @param output      the snapshot
+     * @param node        the node
+     * @param itemIndexes item --> index
+     * @throws IOException issue writing the snapshot
+     */
+    private static void writeNode(DataOutput output, CodebookStructureNode node, Map<CodebookItem, Integer> itemIndexes) throws IOException {
+        output.writeInt(itemIndexes.get(node.getValue()));
+        output.writeInt(node.getChildren().size());
+        for(CodebookStructureNode child:node.getChildren()){
+            writeNode(output, child, itemIndexes);
+        }
+    }
+
+    /**
+     * reads a node and its descendants
+     * @param input the snapshot
+     * @param items the items of the snapshot
+     * @param depth depth of the node in the tree
+     * @return the node
+     * @throws IOException issue reading the snapshot or the snapshot is corrupt
+     */
+    private static CodebookStructureNode readNode(DataInput input, List<CodebookItem> items, int depth) throws IOException {
+        if(depth>maxTreeDepth){
+            throw new IOException("Corrupt snapshot: the tree is too deep");
+        }
+        CodebookStructureNode node = new CodebookStructureNode(getItem(items, input.readInt()));
+        int nrChildren = readCount(input);
+        for(int i=0; i<nrChildren; i++){
+            node.addChild(readNode(input, items, depth+1));
+        }
+        return node;
+    }
+
+    /**
+     * returns the item a node or the item map refers to
+     * @param items the items of the snapshot
+     * @param index index of the item
+     * @return the item
+     * @throws IOException the index doesn't refer to an item
+     */
+    private static CodebookItem getItem(List<CodebookItem> items, int index) throws IOException {
+        if(index<0 || index>=items.size()){
+            throw new IOException("Corrupt snapshot: invalid item index "+index);
+        }
+        return items.get(index);
+    }
+
+    /**
+     * writes a String, which may be null
+     * @param output the snapshot
+     * @param value  the String
+     * @throws IOException issue writing the snapshot
+     */
+    static void writeString(DataOutput output, String value) throws IOException {
+        if(value==null){
+            output.writeInt(-1);
+            return;
+        }
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * reads a String written by writeString
+     * @param input the snapshot
+     * @return the String, which may be null
+     * @throws IOException issue reading the snapshot or the snapshot is corrupt
+     */
+    static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if(length==-1){
+            return null;
+        }
+        if(length<0 || length>maxStringLength){
+            throw new IOException("Corrupt snapshot: invalid String length "+length);
+        }
+        byte [] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * writes an enum constant, which may be null, by its name
+     * @param output the snapshot
+     * @param value  the enum constant
+     * @throws IOException issue writing the snapshot
+     */
+    static void writeEnum(DataOutput output, Enum<?> value) throws IOException {
+        writeString(output, value==null ? null : value.name());
+    }
+
+    /**
+     * reads an enum constant written by writeEnum
+     * @param input    the snapshot
+     * @param enumType type of the enum
+     * @param <E>      type of the enum
+     * @return the enum constant, which may be null
+     * @throws IOException issue reading the snapshot or the enum has no constant with the name that was read
+     */
+    static <E extends Enum<E>> E readEnum(DataInput input, Class<E> enumType) throws IOException {
+        String name = readString(input);
+        try {
+            return name==null ? null : Enum.valueOf(enumType, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot: unknown "+enumType.getSimpleName()+" "+name, e);
+        }
+    }
+
+    /**
+     * reads the number of elements that follow
+     * @param input the snapshot
+     * @return the number of elements
+     * @throws IOException issue reading the snapshot or the number is negative
+     */
+    static int readCount(DataInput input) throws IOException {
+        int count = input.readInt();
+        if(count<0){
+            throw new IOException("Corrupt snapshot: invalid count "+count);
+        }
+        return count;
+    }
+
+    /**
+     * returns whether the snapshot is of the codebook we need and all its source files are up to date and have the
+     * same content as when the snapshot was created
+     * the source files are retrieved the same way as when the codebook is created, so a source file that is too old
+     * or of another version than the codebook's metadata requires is downloaded again first
+     * @param key       codebook + datasetId + language of the codebook we need
+     * @param retriever retrieves a source file, e.g. from the cache or the server
+     * @return true/false
+     * @throws IOException issue reading a source file
+     */
+    boolean isValid(String key, Function<SourceFile, File> retriever) throws IOException {
+        if(!this.key.equals(key) || sourceFileHashes.isEmpty()){
+            return false;
+        }
+        for(Map.Entry<SourceFile, String> entry:sourceFileHashes.entrySet()){
+            File sourceFile;
+            try {
+                sourceFile = retriever.apply(entry.getKey());
+            } catch (RuntimeException e) {
+                // the codebook is created from scratch instead, which reports the problem if it persists
+                logger.log(Level.WARN, "Unable to retrieve "+entry.getKey().getFile().getName()+": "+e.getMessage());
+                return false;
+            }
+            if(!sourceFile.exists() || !getHash(sourceFile).equals(entry.getValue())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * returns the location of the snapshot for a codebook + datasetId + language
+     * @param key codebook + datasetId + language
+     * @return the snapshot file
+     */
+    private static File getSnapshotFile(String key){
+        return new File(GlobalSettings.getCacheDir()+File.separator+key.replaceAll("[^a-zA-Z0-9._-]", "_")+".snapshot");
+    }
+
+    /**
+     * returns the SHA-256 hash of a file's content
+     * @param file the file
+     * @return the hash as hex string
+     * @throws IOException issue reading the file
+     */
+    private static String getHash(File file) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte [] buffer = new byte[8192];
+            int read;
+            while((read = inputStream.read(buffer))!=-1){
+                messageDigest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * returns the root of the codebook's tree
+     * @return the root of the codebook's tree
+     */
+    CodebookStructureNode getRoot(){
+        return root;
+    }
+
+    /**
+     * returns the codebook's items
+     * @return id --> item
+     */
+    Map<String, CodebookItem> getCodebookItemMap(){
+        return codebookItemMap;
+    }
+
+    /**
+     * a codebook item restored from a snapshot
+     */
+    private static class SnapshotItem extends CodebookItemDefault {
+        SnapshotItem(DataInput input) throws IOException {
+            super(input);
+        }
+    }
+
+    /**
+     * a codebook restored from a snapshot
+     */
+    private static class SnapshotCodebook extends CodebookDefault {
+        SnapshotCodebook(String datasetId, String extendedLanguage, String codebookName, CodebookSnapshot snapshot){
+            super(datasetId, extendedLanguage, codebookName);
+            root = snapshot.getRoot();
+            codebookItemMap.putAll(snapshot.getCodebookItemMap());
+            snapshot.sourceFileHashes.keySet().forEach(this::addSourceFile);
+        }
+    }
+}
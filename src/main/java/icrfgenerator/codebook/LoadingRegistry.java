@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 VUmc/KWF TraIT2Health-RI
+ *
+ * This file is part of iCRFGenerator
+ *
+ * iCRFGenerator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * iCRFGenerator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with iCRFGenerator. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package icrfgenerator.codebook;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * thread-safe registry for things that are expensive to load, such as codebooks and their metadata
+ * values that have been loaded are read without locking
+ * if several threads request the same key at the same time, only one of them loads it and the others
+ * wait for that load to finish
+ * @param <V> type of the stored values
+ */
+class LoadingRegistry<V> {
+    private final Map<String, V> loadedMap = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<V>> inFlightMap = new ConcurrentHashMap<>();
+
+    /**
+     * returns the value for a key
+     * @param key the key
+     * @return the value or null if it hasn't been loaded (yet)
+     */
+    V get(String key){
+        return loadedMap.get(key);
+    }
+
+    /**
+     * returns whether the value for a key has been loaded
+     * @param key the key
+     * @return true/false
+     */
+    boolean isLoaded(String key){
+        return loadedMap.containsKey(key);
+    }
+
+    /**
+     * returns the value for a key, loading it if necessary
+     * if another thread is already loading the key, waits for that load instead of starting a new one
+     * @param key    the key
+     * @param loader loads the value; a null result is not stored
+     * @return the value
+     */
+    V getOrLoad(String key, Supplier<V> loader){
+        V value = loadedMap.get(key);
+        if(value!=null){
+            return value;
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = inFlightMap.putIfAbsent(key, future);
+        if(inFlight!=null){
+            return waitFor(inFlight);
+        }
+
+        try {
+            // the previous load may have finished between the first check and registering our future
+            value = loadedMap.get(key);
+            if(value==null){
+                value = loader.get();
+                if(value!=null){
+                    loadedMap.put(key, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e){
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightMap.remove(key, future);
+        }
+    }
+
+    /**
+     * waits for a load that is done by another thread
+     * @param inFlight the future of the other load
+     * @return the loaded value
+     */
+    private V waitFor(CompletableFuture<V> inFlight){
+        try {
+            return inFlight.join();
+        } catch (CompletionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Loading failed in another thread", e.getCause());
+        }
+    }
+}
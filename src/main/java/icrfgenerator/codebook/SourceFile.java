@@ -0,0 +1,97 @@
+package icrfgenerator.codebook;
+
+import icrfgenerator.utils.KeyUtils;
+import icrfgenerator.utils.RestCalls;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * a file a codebook is created from, together with where it is retrieved from
+ * the version of the data the file has to contain isn't stored, as it may change on the server; for ART-DECOR
+ * datasets it is looked up in the codebook's metadata each time the file is retrieved
+ */
+public class SourceFile {
+    private final String path;
+    private final String uri;
+    private final String datasetId;
+
+    /**
+     * create a source file
+     * @param path      the local file
+     * @param uri       where the file can be retrieved
+     * @param datasetId id of the dataset the file contains, which determines the version the file has to be of, or
+     *                  null if the version of the file is unknown
+     */
+    public SourceFile(String path, String uri, String datasetId){
+        this.path = path;
+        this.uri = uri;
+        this.datasetId = datasetId;
+    }
+
+    /**
+     * returns the local file
+     * @return the local file
+     */
+    public File getFile(){
+        return new File(path);
+    }
+
+    /**
+     * returns the path of the local file
+     * @return the path
+     */
+    String getPath(){
+        return path;
+    }
+
+    /**
+     * returns where the file can be retrieved
+     * @return the uri
+     */
+    String getUri(){
+        return uri;
+    }
+
+    /**
+     * returns the id of the dataset the file contains
+     * @return the dataset id or null if the version of the file is unknown
+     */
+    String getDatasetId(){
+        return datasetId;
+    }
+
+    /**
+     * returns the file, retrieving it if it isn't cached or if the cached file isn't up to date
+     * @param codebookName name of the codebook, of which the metadata has the version of the dataset
+     * @return the file
+     */
+    public File retrieve(String codebookName){
+        return RestCalls.getFile(uri, path, getVersion(codebookName));
+    }
+
+    /**
+     * returns the version of the dataset according to the codebook's metadata
+     * this is used to determine whether a cached dataset file is still current
+     * @param codebookName name of the codebook
+     * @return the version label and effective date or null if the version is unknown, e.g. when a dataset of
+     *         another project is referenced
+     */
+    private String getVersion(String codebookName){
+        CodebookManager codebookManager = CodebookManager.getInstance();
+        if(datasetId==null || !codebookManager.hasDatasetMetaData(codebookName, datasetId)){
+            return null;
+        }
+        return KeyUtils.getKey(codebookManager.getDatasetVersion(codebookName, datasetId), codebookManager.getDatasetEffectiveDate(codebookName, datasetId));
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof SourceFile sourceFile && path.equals(sourceFile.path);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(path);
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2019 VUmc/KWF TraIT2Health-RI
+ *
+ * This file is part of iCRFGenerator
+ *
+ * iCRFGenerator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * iCRFGenerator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with iCRFGenerator. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package icrfgenerator.codebook.artdecor;
+
+import icrfgenerator.codebook.artdecor.CodebookArtDecor.TerminologyElement;
+import org.w3c.dom.Element;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static icrfgenerator.utils.XMLUtils.*;
+
+/**
+ * The information of a single Art-Decor concept element which we need to create a CodebookItem.
+ * It only holds the concept's own details (name, description, properties, valueDomain, valueSet, etc.) and
+ * not its child concepts, which allows it to be filled both from a DOM element and while streaming the XML.
+ * Similar to XMLUtils.getChildElementWithName, only the first occurrence of single children is used.
+ */
+class ArtDecorConcept {
+    private final String id;
+    private final String statusCode;
+    private final String type;
+
+    private String name;
+    private String description;
+    private String containsRef;
+    private String containsDatasetId;
+    private ValueElement valueDomain;
+    private ValueElement valueSet;
+
+    private final Map<String, String> propertiesMap = new HashMap<>();
+    private final List<TerminologyElement> terminologyAssociations = new ArrayList<>();
+
+    private ArtDecorConcept(String id, String statusCode, String type){
+        this.id = id;
+        this.statusCode = statusCode;
+        this.type = type;
+    }
+
+    /**
+     * create a concept based on a DOM concept element
+     * @param conceptElement the concept element
+     * @return the concept
+     */
+    static ArtDecorConcept fromElement(Element conceptElement){
+        ArtDecorConcept concept = new ArtDecorConcept(getAttributeValue(conceptElement, "id"), getAttributeValue(conceptElement, "statusCode"), getAttributeValue(conceptElement, "type"));
+        concept.name = getElementValue(conceptElement, "name");
+        concept.description = getElementValue(conceptElement, "desc");
+        concept.propertiesMap.putAll(getPropertyAttributeValues(conceptElement));
+
+        for(Element terminologyAssociation : getChildElementsWithName(conceptElement, "terminologyAssociation")){
+            concept.terminologyAssociations.add(new TerminologyElement(
+                    getAttributeValue(terminologyAssociation, "conceptId"),
+                    getAttributeValue(terminologyAssociation, "code"),
+                    getAttributeValue(terminologyAssociation, "codeSystem"),
+                    getAttributeValue(terminologyAssociation, "displayName"),
+                    getAttributeValue(terminologyAssociation, "codeSystemName")));
+        }
+
+        Element containsElement = getChildElementWithName(conceptElement, "contains");
+        if(containsElement!=null){
+            concept.containsRef = containsElement.getAttribute("ref");
+            concept.containsDatasetId = containsElement.getAttribute("datasetId");
+        }
+
+        concept.valueDomain = ValueElement.fromElement(getChildElementWithName(conceptElement, "valueDomain"));
+        concept.valueSet = ValueElement.fromElement(getChildElementWithName(conceptElement, "valueSet"));
+        return concept;
+    }
+
+    /**
+     * create a concept for the concept start element the stream reader is positioned at
+     * only the attributes are read; the children have to be offered using readChildElement
+     * @param reader stream reader positioned at a concept start element
+     * @return the concept
+     */
+    static ArtDecorConcept fromStartElement(XMLStreamReader reader){
+        return new ArtDecorConcept(getAttributeValue(reader, "id"), getAttributeValue(reader, "statusCode"), getAttributeValue(reader, "type"));
+    }
+
+    /**
+     * reads a direct child of the concept element while streaming. Children we're not interested in are skipped.
+     * Afterwards the reader is positioned at the child's end element.
+     * @param reader stream reader positioned at the start element of a child of the concept
+     * @return whether the child contained information for this concept
+     * @throws XMLStreamException issue reading the stream
+     */
+    boolean readChildElement(XMLStreamReader reader) throws XMLStreamException {
+        switch (reader.getLocalName()) {
+            case "name" -> {
+                String value = getElementText(reader);
+                if(name==null) name = value;
+            }
+            case "desc" -> {
+                String value = getElementText(reader);
+                if(description==null) description = value;
+            }
+            case "property" -> {
+                String propertyName = getAttributeValue(reader, "name");
+                propertiesMap.put(propertyName, getElementText(reader).trim());
+            }
+            case "terminologyAssociation" -> {
+                terminologyAssociations.add(new TerminologyElement(
+                        getAttributeValue(reader, "conceptId"),
+                        getAttributeValue(reader, "code"),
+                        getAttributeValue(reader, "codeSystem"),
+                        getAttributeValue(reader, "displayName"),
+                        getAttributeValue(reader, "codeSystemName")));
+                skipElement(reader);
+            }
+            case "contains" -> {
+                if(containsRef==null) {
+                    containsRef = reader.getAttributeValue(null, "ref");
+                    containsDatasetId = reader.getAttributeValue(null, "datasetId");
+                    containsRef = containsRef==null ? "" : containsRef;
+                    containsDatasetId = containsDatasetId==null ? "" : containsDatasetId;
+                }
+                skipElement(reader);
+            }
+            case "valueDomain" -> {
+                ValueElement valueElement = ValueElement.fromStream(reader);
+                if(valueDomain==null) valueDomain = valueElement;
+            }
+            case "valueSet" -> {
+                ValueElement valueElement = ValueElement.fromStream(reader);
+                if(valueSet==null) valueSet = valueElement;
+            }
+            default -> {
+                skipElement(reader);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * reads all the remaining children of the concept element while streaming
+     * Afterwards the reader is positioned at the concept's end element.
+     * @param reader stream reader positioned inside the concept element
+     * @throws XMLStreamException issue reading the stream
+     */
+    void readChildElements(XMLStreamReader reader) throws XMLStreamException {
+        while(true){
+            int event = reader.next();
+            if(event==XMLStreamConstants.END_ELEMENT) return;
+            if(event==XMLStreamConstants.START_ELEMENT) readChildElement(reader);
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    boolean hasValidStatusCode(){
+        return isValidStatusCode(statusCode);
+    }
+
+    boolean isGroup(){
+        return isGroupType(type);
+    }
+
+    /**
+     * returns whether the concept refers to a concept in another dataset
+     * @return true/false
+     */
+    boolean hasContains(){
+        return containsRef!=null;
+    }
+
+    String getContainsRef() {
+        return containsRef;
+    }
+
+    String getContainsDatasetId() {
+        return containsDatasetId;
+    }
+
+    ValueElement getValueDomain() {
+        return valueDomain;
+    }
+
+    ValueElement getValueSet() {
+        return valueSet;
+    }
+
+    Map<String, String> getPropertiesMap() {
+        return propertiesMap;
+    }
+
+    List<TerminologyElement> getTerminologyAssociations() {
+        return terminologyAssociations;
+    }
+
+    /**
+     * the information of a valueDomain or valueSet element
+     */
+    static class ValueElement {
+        private String type;
+        private boolean hasProperty = false;
+        private String unit = "";
+        private String minInclude = "";
+        private String maxInclude = "";
+        private String fractionDigits = "";
+        private boolean hasConceptList = false;
+        private final List<CodelistEntry> concepts = new ArrayList<>();
+        private final List<CodelistEntry> exceptions = new ArrayList<>();
+
+        /**
+         * create the valueDomain / valueSet information based on its DOM element
+         * @param element the valueDomain or valueSet element; may be null
+         * @return the information or null if there is no element
+         */
+        private static ValueElement fromElement(Element element){
+            if(element==null) return null;
+            ValueElement valueElement = new ValueElement();
+            valueElement.type = getAttributeValue(element, "type");
+
+            Element propertyElement = getChildElementWithName(element, "property");
+            if(propertyElement!=null){
+                valueElement.readProperty(getAttributeValue(propertyElement, "unit"), getAttributeValue(propertyElement, "minInclude"),
+                        getAttributeValue(propertyElement, "maxInclude"), getAttributeValue(propertyElement, "fractionDigits"));
+            }
+
+            Element conceptListElement = getChildElementWithName(element, "conceptList");
+            if(conceptListElement!=null){
+                valueElement.hasConceptList = true;
+                getChildElementsWithName(conceptListElement, "concept").forEach(t->valueElement.concepts.add(CodelistEntry.fromElement(t)));
+                getChildElementsWithName(conceptListElement, "exception").forEach(t->valueElement.exceptions.add(CodelistEntry.fromElement(t)));
+            }
+            return valueElement;
+        }
+
+        /**
+         * create the valueDomain / valueSet information for the element the stream reader is positioned at
+         * Afterwards the reader is positioned at the element's end element.
+         * @param reader stream reader positioned at a valueDomain or valueSet start element
+         * @return the information
+         * @throws XMLStreamException issue reading the stream
+         */
+        private static ValueElement fromStream(XMLStreamReader reader) throws XMLStreamException {
+            ValueElement valueElement = new ValueElement();
+            valueElement.type = getAttributeValue(reader, "type");
+            while(true){
+                int event = reader.next();
+                if(event==XMLStreamConstants.END_ELEMENT) return valueElement;
+                if(event!=XMLStreamConstants.START_ELEMENT) continue;
+
+                String elementName = reader.getLocalName();
+                if(elementName.equals("property") && !valueElement.hasProperty){
+                    valueElement.readProperty(getAttributeValue(reader, "unit"), getAttributeValue(reader, "minInclude"),
+                            getAttributeValue(reader, "maxInclude"), getAttributeValue(reader, "fractionDigits"));
+                    skipElement(reader);
+                }
+                else if(elementName.equals("conceptList") && !valueElement.hasConceptList){
+                    valueElement.hasConceptList = true;
+                    valueElement.readConceptList(reader);
+                }
+                else{
+                    skipElement(reader);
+                }
+            }
+        }
+
+        private void readProperty(String unit, String minInclude, String maxInclude, String fractionDigits){
+            this.hasProperty = true;
+            this.unit = unit;
+            this.minInclude = minInclude;
+            this.maxInclude = maxInclude;
+            this.fractionDigits = fractionDigits;
+        }
+
+        private void readConceptList(XMLStreamReader reader) throws XMLStreamException {
+            while(true){
+                int event = reader.next();
+                if(event==XMLStreamConstants.END_ELEMENT) return;
+                if(event!=XMLStreamConstants.START_ELEMENT) continue;
+
+                switch (reader.getLocalName()) {
+                    case "concept" -> concepts.add(CodelistEntry.fromStream(reader));
+                    case "exception" -> exceptions.add(CodelistEntry.fromStream(reader));
+                    default -> skipElement(reader);
+                }
+            }
+        }
+
+        /**
+         * find out whether the valueDomain or valueSet has concepts
+         * @return true/false
+         */
+        boolean hasConcepts(){
+            return hasConceptList && concepts.size()>0;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        boolean hasProperty() {
+            return hasProperty;
+        }
+
+        String getUnit() {
+            return unit;
+        }
+
+        String getMinInclude() {
+            return minInclude;
+        }
+
+        String getMaxInclude() {
+            return maxInclude;
+        }
+
+        String getFractionDigits() {
+            return fractionDigits;
+        }
+
+        List<CodelistEntry> getConcepts() {
+            return concepts;
+        }
+
+        List<CodelistEntry> getExceptions() {
+            return exceptions;
+        }
+    }
+
+    /**
+     * a concept or exception in the conceptList of a valueDomain or valueSet
+     */
+    static class CodelistEntry {
+        final String id;
+        final String code;
+        final String displayName;
+        final String codeSystem;
+        String name;
+        String description;
+
+        private CodelistEntry(String id, String code, String displayName, String codeSystem){
+            this.id = id;
+            this.code = code;
+            this.displayName = displayName;
+            this.codeSystem = codeSystem;
+        }
+
+        private static CodelistEntry fromElement(Element element){
+            CodelistEntry codelistEntry = new CodelistEntry(getAttributeValue(element, "id"), getAttributeValue(element, "code"),
+                    getAttributeValue(element, "displayName"), getAttributeValue(element, "codeSystem"));
+            codelistEntry.name = getElementValue(element, "name");
+            codelistEntry.description = getElementValue(element, "desc");
+            return codelistEntry;
+        }
+
+        private static CodelistEntry fromStream(XMLStreamReader reader) throws XMLStreamException {
+            CodelistEntry codelistEntry = new CodelistEntry(getAttributeValue(reader, "id"), getAttributeValue(reader, "code"),
+                    getAttributeValue(reader, "displayName"), getAttributeValue(reader, "codeSystem"));
+            while(true){
+                int event = reader.next();
+                if(event==XMLStreamConstants.END_ELEMENT) return codelistEntry;
+                if(event!=XMLStreamConstants.START_ELEMENT) continue;
+
+                String elementName = reader.getLocalName();
+                if(elementName.equals("name") && codelistEntry.name==null){
+                    codelistEntry.name = getElementText(reader);
+                }
+                else if(elementName.equals("desc") && codelistEntry.description==null){
+                    codelistEntry.description = getElementText(reader);
+                }
+                else{
+                    skipElement(reader);
+                }
+            }
+        }
+    }
+}
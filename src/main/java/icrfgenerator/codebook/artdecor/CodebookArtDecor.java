@@ -20,13 +20,15 @@
 package icrfgenerator.codebook.artdecor;
 
 import icrfgenerator.codebook.CodebookDefault;
+import icrfgenerator.codebook.SourceFile;
+import icrfgenerator.codebook.artdecor.ArtDecorConcept.CodelistEntry;
+import icrfgenerator.codebook.artdecor.ArtDecorConcept.ValueElement;
 import icrfgenerator.codebook.shared.CodebookStructureNode;
 import icrfgenerator.types.NodeType;
 import icrfgenerator.types.OperatorType;
 import icrfgenerator.settings.GlobalSettings;
+import icrfgenerator.utils.CacheFileUtils;
 import icrfgenerator.utils.KeyUtils;
-import icrfgenerator.utils.RestCalls;
-import icrfgenerator.utils.XMLUtils;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,6 +38,10 @@ import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
@@ -60,6 +66,10 @@ import static icrfgenerator.utils.XMLUtils.*;
  * For BgZ, SoortTabakGebruik is a nice example
  * For RIVM, screening is a nice exmaple, as is ASA score, as the latter has a valueDomain AND a valueSet with options
  * RIVM also has codelists which do not have codes, e.g. Reden afmelding
+ * The dataset file is read using a streaming (StAX) parser, which builds the items while reading the file instead of
+ * first building a DOM of the entire file. If the file is structured in a way the streaming parser can't handle,
+ * we fall back to the DOM based parsing. Referenced datasets are always parsed using the DOM, as we need random
+ * access to find the referenced concept.
  */
 public class CodebookArtDecor extends CodebookDefault {
     private static final Logger logger = LogManager.getLogger(CodebookArtDecor.class.getName());
@@ -69,6 +79,14 @@ public class CodebookArtDecor extends CodebookDefault {
     private final Map<String, String> codeSystemMap = new HashMap<>();
     private final Map<String, TerminologyElement> terminologyAssociationMap = new HashMap<>();
 
+    // referenced datasets are parsed once per load; datasetId --> (concept id --> concept element)
+    private final Map<String, Map<String, Element>> referencedConceptsMap = new HashMap<>();
+    // documents whose codesystems were already added to the codeSystemMap
+    private final Set<Document> codeSystemDocuments = Collections.newSetFromMap(new IdentityHashMap<>());
+    // subtrees built for referenced concepts; datasetId_ref --> subtree
+    private final Map<String, ReferencedSubtree> referencedSubtreeMap = new HashMap<>();
+    private final Deque<ReferencedSubtree> referencedSubtreesInProgress = new ArrayDeque<>();
+
     /**
      * Codebook constructor
      * @param datasetId    id of the dataset, e.g. 2.16.840.1.113883.2.4.3.11.60.42.1.1
@@ -78,11 +96,43 @@ public class CodebookArtDecor extends CodebookDefault {
     public CodebookArtDecor(String datasetId, String extendedLanguage, String codebookName){
         super(datasetId, extendedLanguage, codebookName);
         // Get the XML file and create a codebook for it
-        File xmlFile = getArtDecorCodebookFile(codebookName, datasetId, extendedLanguage);
+        File xmlFile = getArtDecorCodebookFile(datasetId);
+        try {
+            createBook(xmlFile);
+        } catch (StreamingNotSupportedException e) {
+            // a valid file of which the layout requires the whole document
+            logger.log(Level.INFO, "The codebook file {} can't be streamed: {}. Using the DOM parser.", xmlFile.getName(), e.getMessage());
+            createBookUsingDOM(xmlFile);
+        } catch (XMLStreamException | IOException e) {
+            logger.log(Level.WARN, "Unable to stream the codebook file {}: {}. Falling back to the DOM parser.", xmlFile.getName(), e.getMessage());
+            createBookUsingDOM(xmlFile);
+        }
+    }
+
+    /**
+     * creates the codebook from scratch using the DOM parser, e.g. when streaming the file failed halfway
+     * @param xmlFile the codebook file
+     */
+    private void createBookUsingDOM(File xmlFile){
+        resetCodebook();
         Element rootElement = getRootElement(xmlFile);
         createBook(rootElement, root);
     }
 
+    /**
+     * remove everything that was created by a failed attempt at parsing the codebook
+     */
+    private void resetCodebook(){
+        clearCodebook();
+        uniqueCounter = 0;
+        detectInfiniteReferencing.clear();
+        codeSystemMap.clear();
+        codeSystemDocuments.clear();
+        terminologyAssociationMap.clear();
+        referencedSubtreeMap.clear();
+        referencedSubtreesInProgress.clear();
+    }
+
     /**
      * unique id generator, which is basically adding a unique postfix to an id
      * this is necessary because of the repeats in the zibs and because of the dummy fields
@@ -93,18 +143,29 @@ public class CodebookArtDecor extends CodebookDefault {
         return KeyUtils.getKey(codebookName, datasetId, id, Integer.toString(uniqueCounter++));
     }
 
+    /**
+     * returns the id as stored in art-decor for an id created by getUniqueId
+     * @param uniqueId the id created by getUniqueId
+     * @return the id as stored in art-decor
+     */
+    private String getArtDecorId(String uniqueId){
+        String prefix = KeyUtils.getKey(codebookName, datasetId, "");
+        return uniqueId.substring(prefix.length(), uniqueId.lastIndexOf("_"));
+    }
+
     /**
      * Downloads an XML file based on datasetId and language from Art-Decor if it doesn't
-     * exist and then attempts to create a codebook for the local datafile
-     * @param codebookName     name of the codebook
-     * @param datasetId        id of the dataset, e.g. 2.16.840.1.113883.2.4.3.11.60.42.1.1
-     * @param extendedLanguage language of interest of the dataset, e.g. nl-NL
+     * exist or isn't up to date and keeps track of it as one of the codebook's source files
+     * @param datasetId id of the dataset, e.g. 2.16.840.1.113883.2.4.3.11.60.42.1.1
+     * @return the local file
      */
-    private static File getArtDecorCodebookFile(String codebookName, String datasetId, String extendedLanguage){
+    private File getArtDecorCodebookFile(String datasetId){
         String uri = GlobalSettings.getServer(codebookName)+"RetrieveDataSet?id="+datasetId+"&language="+extendedLanguage+"&format=xml";
         String dir = GlobalSettings.getCacheDir()+File.separator;
         String fileName = dir+datasetId+extendedLanguage+".xml";
-        return RestCalls.getFile(uri, fileName);
+        SourceFile sourceFile = new SourceFile(fileName, uri, datasetId);
+        addSourceFile(sourceFile);
+        return sourceFile.retrieve(codebookName);
     }
 
     /**
@@ -116,7 +177,10 @@ public class CodebookArtDecor extends CodebookDefault {
 
         try {
             DocumentBuilder db = dbf.newDocumentBuilder();
-            Document dom = db.parse(file);
+            Document dom;
+            try (InputStream inputStream = CacheFileUtils.openInputStream(file)) {
+                dom = db.parse(inputStream);
+            }
 
             // get the root element
             return dom.getDocumentElement();
@@ -126,6 +190,128 @@ public class CodebookArtDecor extends CodebookDefault {
         }
     }
 
+    /**
+     * parses the codebook by streaming the xml file
+     * The codesystems are collected in a first pass, as the valueSets can refer to a codesystem defined anywhere
+     * in the file
+     * @param file the xml file for which we're creating a codebook
+     * @throws XMLStreamException issue with the xml
+     * @throws IOException issue reading the file
+     * @throws StreamingNotSupportedException the file can't be handled by the streaming parser
+     */
+    private void createBook(File file) throws XMLStreamException, IOException, StreamingNotSupportedException {
+        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        try(InputStream inputStream = CacheFileUtils.openInputStream(file)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+            try {
+                addCodeSystems(reader);
+            } finally {
+                reader.close();
+            }
+        }
+
+        try(InputStream inputStream = CacheFileUtils.openInputStream(file)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+            try {
+                // move to the root element and parse its concepts
+                reader.nextTag();
+                createBook(reader, getAttributeValue(reader, "id"), root);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * the streaming counterpart of addCodeSystem; adds all the sourceCodeSystems in the file to the codesystem map
+     * @param reader stream reader at the start of the file
+     * @throws XMLStreamException issue with the xml
+     */
+    private void addCodeSystems(XMLStreamReader reader) throws XMLStreamException {
+        while(reader.hasNext()){
+            if(reader.next()==XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("sourceCodeSystem")){
+                codeSystemMap.put(getAttributeValue(reader, "id"), getAttributeValue(reader, "identifierName"));
+            }
+        }
+    }
+
+    /**
+     * parses the concepts that are children of the element the reader is positioned at
+     * Afterwards the reader is positioned at the element's end element.
+     * @param reader     stream reader positioned at the root element or a group concept
+     * @param parentId   id of the element the reader is positioned at
+     * @param parentNode tree node to keep track of the structure
+     * @throws XMLStreamException issue with the xml
+     * @throws StreamingNotSupportedException the file can't be handled by the streaming parser
+     */
+    private void createBook(XMLStreamReader reader, String parentId, CodebookStructureNode parentNode) throws XMLStreamException, StreamingNotSupportedException {
+        while(true){
+            int event = reader.next();
+            if(event==XMLStreamConstants.END_ELEMENT) return;
+            if(event!=XMLStreamConstants.START_ELEMENT) continue;
+
+            if(reader.getLocalName().equals("concept")){
+                handleConceptElement(reader, parentId, parentNode);
+            }
+            else{
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * the streaming counterpart of handling a single concept element
+     * a group's own information has to be known before its child concepts are handled. If the information appears
+     * after the first child concept, this file can't be streamed.
+     * Afterwards the reader is positioned at the concept's end element.
+     * @param reader     stream reader positioned at a concept element
+     * @param parentId   id of the concept's parent element
+     * @param parentNode tree node to keep track of the structure
+     * @throws XMLStreamException issue with the xml
+     * @throws StreamingNotSupportedException the file can't be handled by the streaming parser
+     */
+    private void handleConceptElement(XMLStreamReader reader, String parentId, CodebookStructureNode parentNode) throws XMLStreamException, StreamingNotSupportedException {
+        ArtDecorConcept concept = ArtDecorConcept.fromStartElement(reader);
+        if(!concept.hasValidStatusCode()){
+            skipElement(reader);
+        }
+        else if(!concept.isGroup()){
+            concept.readChildElements(reader);
+            CodebookItemArtDecor itemItem = createItemElement(concept);
+            addItem(itemItem, parentNode);
+        }
+        else{
+            boolean groupHandled = false;
+            CodebookStructureNode newParent = null;
+            while(true){
+                int event = reader.next();
+                if(event==XMLStreamConstants.END_ELEMENT) break;
+                if(event!=XMLStreamConstants.START_ELEMENT) continue;
+
+                if(reader.getLocalName().equals("concept")){
+                    // the first child concept; we should now have all the information about the group itself
+                    if(!groupHandled){
+                        newParent = handleGroupConcept(parentId, concept, parentNode);
+                        groupHandled = true;
+                    }
+                    // if the group refers to another codebook, its own children are not used
+                    if(newParent!=null){
+                        handleConceptElement(reader, concept.getId(), newParent);
+                    }
+                    else{
+                        skipElement(reader);
+                    }
+                }
+                else if(concept.readChildElement(reader) && groupHandled){
+                    throw new StreamingNotSupportedException("information for concept "+concept.getId()+" found after its child concepts");
+                }
+            }
+            if(!groupHandled){
+                handleGroupConcept(parentId, concept, parentNode);
+            }
+        }
+    }
+
     /**
      * parses the codebook starting from the root element
      * @param element an element (starts as root element)
@@ -152,173 +338,226 @@ public class CodebookArtDecor extends CodebookDefault {
      */
     private void handleConceptElement(Element element, Element conceptElement, CodebookStructureNode parentNode){
         if (hasValidStatusCode(conceptElement)) {
-            if(isGroupElement(conceptElement)) {
-                // check whether the item refers to another codebook. This happens e.g. in the ZIBs
-                Element containsElement = getChildElementWithName(conceptElement, "contains");
-                if(containsElement!=null){
-                    handleReferencedCodebook(element, conceptElement, containsElement, parentNode);
-                }
-                // if we're dealing with a setting in which a group element should be a selectable item
-                else if (groupIsAnItem) {
-                    handleGroupIsAnItem(conceptElement, parentNode);
-                }
-                else {
-                    CodebookItemArtDecor groupItem = createGroupConceptElement(conceptElement);
-                    CodebookStructureNode newParent = addItem(groupItem, parentNode);
+            ArtDecorConcept concept = ArtDecorConcept.fromElement(conceptElement);
+            if(concept.isGroup()) {
+                CodebookStructureNode newParent = handleGroupConcept(element.getAttribute("id"), concept, parentNode);
+                if(newParent!=null){
                     createBook(conceptElement, newParent);
                 }
             }
             else{
-                CodebookItemArtDecor itemItem = createItemElement(conceptElement);
+                CodebookItemArtDecor itemItem = createItemElement(concept);
                 addItem(itemItem, parentNode);
             }
         }
     }
 
+    /**
+     * handles a group concept, which is either a reference to another codebook, a group which is an item itself or
+     * a normal group
+     * @param parentId   id of the group's parent element
+     * @param concept    the group concept
+     * @param parentNode tree node to keep track of the structure
+     * @return the tree node to which the group's child concepts should be added or null if the child concepts
+     *         should not be added
+     */
+    private CodebookStructureNode handleGroupConcept(String parentId, ArtDecorConcept concept, CodebookStructureNode parentNode){
+        // check whether the item refers to another codebook. This happens e.g. in the ZIBs
+        if(concept.hasContains()){
+            handleReferencedCodebook(parentId, concept, parentNode);
+            return null;
+        }
+        // if we're dealing with a setting in which a group element should be a selectable item
+        else if (groupIsAnItem) {
+            return handleGroupIsAnItem(concept, parentNode);
+        }
+        CodebookItemArtDecor groupItem = createGroupConceptElement(concept);
+        return addItem(groupItem, parentNode);
+    }
+
     /**
      * if a codebook has a reference tag, it's referring to an item (possible with subitems) in another codebook
      * here, we attempt to find which element in which codebook is referred to and open that codebook and continue
      * from the referred element
-     * @param element         the parent element
-     * @param conceptElement  the child element
-     * @param containsElement the referrence element
-     * @param parentNode      the structure node
+     * @param parentId   id of the parent element
+     * @param concept    the concept with the reference
+     * @param parentNode the structure node
      */
-    private void handleReferencedCodebook(Element element, Element conceptElement, Element containsElement, CodebookStructureNode parentNode){
-        // Retrieve the element that is referred to from the other dataset and continue by parsing
-        // that element and its sub-elements
-        Element refElement = getRefOtherCodebookElement(containsElement);
+    private void handleReferencedCodebook(String parentId, ArtDecorConcept concept, CodebookStructureNode parentNode){
+        // the subtrees we're currently building depend on the outcome of the infinite reference check below
+        referencedSubtreesInProgress.forEach(t->t.checkedIds.add(parentId));
 
         // a ZIB can apparently reference itself (e.g. nl.zorg.LaboratoriumUitslag)
         // to prevent an infinite loop, track whether this branch has visited this id before
         // if it hasn't, continue
-        String id = element.getAttribute("id");
-        if(!detectInfiniteReferencing.contains(id)) {
-            detectInfiniteReferencing.add(id);
-            createBook(refElement, parentNode);
-            detectInfiniteReferencing.remove(id);
+        if(!detectInfiniteReferencing.contains(parentId)) {
+            detectInfiniteReferencing.add(parentId);
+            String key = KeyUtils.getKey(concept.getContainsDatasetId(), concept.getContainsRef());
+            ReferencedSubtree referencedSubtree = referencedSubtreeMap.get(key);
+            if(referencedSubtree!=null && referencedSubtree.isReusable(detectInfiniteReferencing)){
+                // we've built this subtree before, so add a copy of it
+                referencedSubtreesInProgress.forEach(t->t.checkedIds.addAll(referencedSubtree.checkedIds));
+                referencedSubtree.nodes.forEach(t->addCopy(t, parentNode));
+            }
+            else{
+                // Retrieve the element that is referred to from the other dataset and continue by parsing
+                // that element and its sub-elements
+                Element refElement = getRefOtherCodebookElement(concept.getContainsRef(), concept.getContainsDatasetId());
+                ReferencedSubtree newReferencedSubtree = new ReferencedSubtree();
+                int nrChildren = parentNode.getChildren().size();
+
+                referencedSubtreesInProgress.push(newReferencedSubtree);
+                createBook(refElement, parentNode);
+                referencedSubtreesInProgress.pop();
+
+                // the nodes that were just added to the parent node form the subtree
+                newReferencedSubtree.nodes.addAll(parentNode.getChildren().subList(nrChildren, parentNode.getChildren().size()));
+                referencedSubtreeMap.put(key, newReferencedSubtree);
+            }
+            detectInfiniteReferencing.remove(parentId);
         }
         else{
+            // the outcome of the subtrees we're building depends on what was visited before; don't reuse them
+            referencedSubtreesInProgress.forEach(t->t.reusable = false);
             // if we're in an infinite reference loop, create a dummy leaf.
-            CodebookItemArtDecor codebookItem = createDummyLeafElement(conceptElement);
+            CodebookItemArtDecor codebookItem = createDummyLeafElement(concept);
             addItem(codebookItem, parentNode);
         }
     }
 
+    /**
+     * adds a copy of a previously built node and its children to a parent node. The copies get new unique ids.
+     * @param node       the node to copy
+     * @param parentNode the structure node to which the copy is added
+     */
+    private void addCopy(CodebookStructureNode node, CodebookStructureNode parentNode){
+        CodebookItemArtDecor codebookItem = (CodebookItemArtDecor) node.getValue();
+        CodebookItemArtDecor copyItem = new CodebookItemArtDecor(getUniqueId(getArtDecorId(codebookItem.getId())), codebookItem);
+        CodebookStructureNode newParent = addItem(copyItem, parentNode);
+        node.getChildren().forEach(t->addCopy(t, newParent));
+    }
+
     /**
      * if a non-leaf node is considered an item, we handle it by creating a dummy non-leaf node
      * and moving the actual item down one level, to ensure it's a leaf-node
-     * @param conceptElement the child element
-     * @param parentNode     the structure node
+     * @param concept    the group concept
+     * @param parentNode the structure node
+     * @return the dummy group's structure node, to which the group's child concepts should be added
      */
-    private void handleGroupIsAnItem(Element conceptElement, CodebookStructureNode parentNode){
+    private CodebookStructureNode handleGroupIsAnItem(ArtDecorConcept concept, CodebookStructureNode parentNode){
         // create a dummy item for the group and addChild it
-        CodebookItemArtDecor dummyGroupItem = createDummyGroupElement(conceptElement);
+        CodebookItemArtDecor dummyGroupItem = createDummyGroupElement(concept);
         CodebookStructureNode newParent = addItem(dummyGroupItem, parentNode);
 
         // addChild the actual item to the dummy group
-        CodebookItemArtDecor itemItem = createItemElement(conceptElement);
+        CodebookItemArtDecor itemItem = createItemElement(concept);
         addItem(itemItem, newParent);
 
-        createBook(conceptElement, newParent);
+        return newParent;
     }
 
     /**
      * attempts to find the reference to another codebook
-     * @param element the element we're looking at
+     * @param ref       id of the concept that is referred to
+     * @param datasetId id of the dataset in which the concept can be found
      * @return the element in the other codebook
      */
-    private Element getRefOtherCodebookElement(Element element){
-        String ref = element.getAttribute("ref");
-        String datasetId = element.getAttribute("datasetId");
+    private Element getRefOtherCodebookElement(String ref, String datasetId){
+        // the referred dataset is parsed and indexed the first time it is referenced
+        Map<String, Element> conceptsMap = referencedConceptsMap.computeIfAbsent(datasetId, this::createReferencedConceptsMap);
+        return conceptsMap.get(ref);
+    }
 
+    /**
+     * parses a referenced dataset and creates an index of its concept elements, allowing us to quickly find
+     * the concept that is referred to
+     * @param datasetId id of the referenced dataset
+     * @return map with concept id --> concept element
+     */
+    private Map<String, Element> createReferencedConceptsMap(String datasetId){
         // get the xml file for the referred dataset and the rootelement
-        File xmlFile = getArtDecorCodebookFile(codebookName, datasetId, extendedLanguage);
+        File xmlFile = getArtDecorCodebookFile(datasetId);
         Element rootElement = getRootElement(xmlFile);
 
-        // use xpath to quickly find our element of interest and return it
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            String expression = "//concept[@id='" + ref + "']";
-            return (Element) xPath.compile(expression).evaluate(rootElement, XPathConstants.NODE);
-        } catch (Exception e) {
-            e.printStackTrace();
+        // like the //concept[@id='...'] xpath we used to do, the first concept in the document with an id wins
+        Map<String, Element> conceptsMap = new HashMap<>();
+        NodeList nodeList = rootElement.getOwnerDocument().getElementsByTagName("concept");
+        for(int i=0; i<nodeList.getLength(); i++){
+            Element conceptElement = (Element) nodeList.item(i);
+            conceptsMap.putIfAbsent(conceptElement.getAttribute("id"), conceptElement);
         }
-        return null;
+        return conceptsMap;
     }
 
     /**
-     * create a group item based on the conceptElement
-     * @param conceptElement the conceptElement
+     * create a group item based on the concept
+     * @param concept the concept
      * @return the newly created CodebookItem
      */
-    private CodebookItemArtDecor createGroupConceptElement(Element conceptElement){
-        String id = getUniqueId(getAttributeValue(conceptElement, "id"));
-        String name = getElementValue(conceptElement, "name");
-        String description = getElementValue(conceptElement, "desc");
+    private CodebookItemArtDecor createGroupConceptElement(ArtDecorConcept concept){
+        String id = getUniqueId(concept.getId());
+        String name = concept.getName();
+        String description = concept.getDescription();
         return new CodebookItemArtDecor(id, name, description, NodeType.GROUPITEM);
     }
 
     /**
-     * create a dummy group item based on the conceptElement
-     * @param conceptElement the conceptElement
+     * create a dummy group item based on the concept
+     * @param concept the concept
      * @return the newly created CodebookItem
      */
-    private CodebookItemArtDecor createDummyGroupElement(Element conceptElement){
+    private CodebookItemArtDecor createDummyGroupElement(ArtDecorConcept concept){
         String id = getUniqueId("DummyId");
-        String name = getElementValue(conceptElement, "name")+" <dummy group>";
+        String name = concept.getName()+" <dummy group>";
         String description = "generated dummy";
         return new CodebookItemArtDecor(id, name, description, NodeType.GROUPITEM);
     }
 
     /**
-     * create a dummy leaf item based on the conceptElement
-     * @param conceptElement the conceptElement
+     * create a dummy leaf item based on the concept
+     * @param concept the concept
      * @return the newly created CodebookItem
      */
-    private CodebookItemArtDecor createDummyLeafElement(Element conceptElement){
-        String id = getUniqueId(getAttributeValue(conceptElement, "id"));
-        String name = getElementValue(conceptElement, "name")+" - Infinite";
-        String description = getElementValue(conceptElement, "desc")+ " - Infinite";
+    private CodebookItemArtDecor createDummyLeafElement(ArtDecorConcept concept){
+        String id = getUniqueId(concept.getId());
+        String name = concept.getName()+" - Infinite";
+        String description = concept.getDescription()+ " - Infinite";
         return new CodebookItemArtDecor(id, name, description, "string", NodeType.LEAFITEM, new HashMap<>());
     }
 
 
-    private void addTerminologyAssociations(Element conceptElement){
-        List<Element> terminologyAssociations = getChildElementsWithName(conceptElement, "terminologyAssociation");
-
-        for (Element terminologyAssociation : terminologyAssociations) {
-            String terminologyConceptId = getAttributeValue(terminologyAssociation, "conceptId");
-            terminologyAssociationMap.put(terminologyConceptId, new TerminologyElement(terminologyAssociation));
+    private void addTerminologyAssociations(ArtDecorConcept concept){
+        for (TerminologyElement terminologyElement : concept.getTerminologyAssociations()) {
+            terminologyAssociationMap.put(terminologyElement.getConceptId(), terminologyElement);
         }
     }
 
     /**
-     * create an item based on the conceptElement
-     * @param conceptElement the conceptElement
+     * create an item based on the concept
+     * @param concept the concept
      * @return the newly created CodebookItem
      */
-    private CodebookItemArtDecor createItemElement(Element conceptElement){
+    private CodebookItemArtDecor createItemElement(ArtDecorConcept concept){
         CodebookItemArtDecor codebookItem;
-        String id = getAttributeValue(conceptElement, "id");
+        String id = concept.getId();
         String uniqueid = getUniqueId(id);
-        String name = getElementValue(conceptElement, "name");
-        String description = getElementValue(conceptElement, "desc");
+        String name = concept.getName();
+        String description = concept.getDescription();
         String datatype = "";
 
         // get the custom ART-DECOR properties for this item
-        Map<String, String> map = XMLUtils.getPropertyAttributeValues(conceptElement);
+        Map<String, String> map = new HashMap<>(concept.getPropertiesMap());
 
         // add the information from the terminologyAssociation tags to the Map.
-        addTerminologyAssociations(conceptElement);
+        addTerminologyAssociations(concept);
 
         // eventueel attribute type ophalen
-        Element valueDomainElement = getChildElementWithName(conceptElement, "valueDomain");
+        ValueElement valueDomainElement = concept.getValueDomain();
         if(valueDomainElement!=null) {
-            datatype = getAttributeValue(valueDomainElement, "type");
+            datatype = valueDomainElement.getType();
         }
         else{
-            System.out.println("Geen valuedomain?");
+            logger.log(Level.WARN, "Concept {} has no value domain", id);
         }
 
         // attempt to find the terminology for the concept
@@ -337,7 +576,7 @@ public class CodebookArtDecor extends CodebookDefault {
         }
 
         // attempt to add a codelist to the item
-        addCodelist(codebookItem, conceptElement);
+        addCodelist(codebookItem, concept);
 
         return codebookItem;
     }
@@ -348,15 +587,14 @@ public class CodebookArtDecor extends CodebookDefault {
      * @param valueDomainElement element with the information
      * @param codebookItem       codebookItem to which we add the information
      */
-    private void addQuantityProperties(Element valueDomainElement, CodebookItemArtDecor codebookItem){
-        Element propertyElement = getChildElementWithName(valueDomainElement, "property");
-        if(propertyElement!=null) {
-            codebookItem.setUnits(getAttributeValue(propertyElement, "unit"));
-            codebookItem.setMin(getAttributeValue(propertyElement, "minInclude"));
+    private void addQuantityProperties(ValueElement valueDomainElement, CodebookItemArtDecor codebookItem){
+        if(valueDomainElement.hasProperty()) {
+            codebookItem.setUnits(valueDomainElement.getUnit());
+            codebookItem.setMin(valueDomainElement.getMinInclude());
             codebookItem.setMinCheckOperator(OperatorType.GTE);
-            codebookItem.setMax(getAttributeValue(propertyElement, "maxInclude"));
+            codebookItem.setMax(valueDomainElement.getMaxInclude());
             codebookItem.setMaxCheckOperator(OperatorType.LTE);
-            codebookItem.setPrecision(getAttributeValue(propertyElement, "fractionDigits"));
+            codebookItem.setPrecision(valueDomainElement.getFractionDigits());
         }
     }
 
@@ -365,26 +603,22 @@ public class CodebookArtDecor extends CodebookDefault {
      * @param element valueDomain or valueSet element
      * @return true/false
      */
-    private boolean elementHasConcepts(Element element){
+    private boolean elementHasConcepts(ValueElement element){
         // the element itself is null, so false
         if(element==null) return false;
-        // next, there should be a conceptList Element
-        Element conceptListElement = getChildElementWithName(element, "conceptList");
-        // if it doesn't exist, also false
-        if(conceptListElement==null) return false;
-        // finally, if the conceptListElement has a concept child, return true
-        return getChildElementWithName(conceptListElement, "concept") != null;
+        // otherwise it should have a conceptList with a concept
+        return element.hasConcepts();
     }
 
 
     /**
      * adds a value set to a codebookItem, if one exists
-     * @param codebookItem   the codebookItem to which to addChild the value set
-     * @param conceptElement the xml codebookItem element in which to look for the valueset
+     * @param codebookItem the codebookItem to which to addChild the value set
+     * @param concept      the concept in which to look for the valueset
      */
-    private void addCodelist(CodebookItemArtDecor codebookItem, Element conceptElement){
-        Element valueDomainElement = getChildElementWithName(conceptElement, "valueDomain");
-        Element valueSetElement = getChildElementWithName(conceptElement, "valueSet");
+    private void addCodelist(CodebookItemArtDecor codebookItem, ArtDecorConcept concept){
+        ValueElement valueDomainElement = concept.getValueDomain();
+        ValueElement valueSetElement = concept.getValueSet();
 
         if(elementHasConcepts(valueDomainElement) && elementHasConcepts(valueSetElement)){
             // so far I've only encountered this in the RIVM codebook and since that one seems
@@ -402,13 +636,11 @@ public class CodebookArtDecor extends CodebookDefault {
         codebookItem.resolveToGenerateCodeListItems();
     }
 
-    private void addValueSetBasedCodelist(CodebookItemArtDecor codebookItem, Element valueSetElement){
+    private void addValueSetBasedCodelist(CodebookItemArtDecor codebookItem, ValueElement valueSetElement){
         try {
-            Element conceptListElement = getChildElementWithName(valueSetElement, "conceptList");
-
             // elements are in the codebookItem tag, but may also be in the exception tag (NULLFlavors)
-            addValueSet(codebookItem, getChildElementsWithName(conceptListElement, "concept"));
-            addValueSet(codebookItem, getChildElementsWithName(conceptListElement, "exception"));
+            addValueSet(codebookItem, valueSetElement.getConcepts());
+            addValueSet(codebookItem, valueSetElement.getExceptions());
             codebookItem.sortCodeList();
         } catch(Exception e){
             // for some reason the codelist is broken
@@ -421,15 +653,15 @@ public class CodebookArtDecor extends CodebookDefault {
      * @param codebookItem  the codebookItem to which to addChild the value set
      * @param elements      list with elements from the valueSet
      */
-    private void addValueSet(CodebookItemArtDecor codebookItem, List<Element> elements) {
+    private void addValueSet(CodebookItemArtDecor codebookItem, List<CodelistEntry> elements) {
         // for all elements, look for the code, codebooksystem name and name
-        for (Element entryElement : elements) {
-            String valueCode = getAttributeValue(entryElement, "code");
-            String displayName = getAttributeValue(entryElement, "displayName");
-            String textInLanguage = getElementValue(entryElement, "desc");
+        for (CodelistEntry entryElement : elements) {
+            String valueCode = entryElement.code;
+            String displayName = entryElement.displayName;
+            String textInLanguage = entryElement.description;
             if(textInLanguage==null)
-                textInLanguage = getElementValue(entryElement, "name");
-            String codeSystemId = getAttributeValue(entryElement, "codeSystem");
+                textInLanguage = entryElement.name;
+            String codeSystemId = entryElement.codeSystem;
 
             // As far as I currently know, if the codeslists are based on the valueSet, the codesystem
             // can be found in the sourceCodeSystem tag, which is stored in the codeSystemMap
@@ -447,12 +679,11 @@ public class CodebookArtDecor extends CodebookDefault {
     }
 
 
-    private void addValueDomainBasedCodelist(CodebookItemArtDecor codebookItem, Element valuDomainElement){
+    private void addValueDomainBasedCodelist(CodebookItemArtDecor codebookItem, ValueElement valuDomainElement){
         try {
-            Element conceptListElement = getChildElementWithName(valuDomainElement, "conceptList");
             // elements are in the codebookItem tag, but may also be in the exception tag (NULLFlavors)
-            addValueDomain(codebookItem, getChildElementsWithName(conceptListElement, "concept"));
-            addValueDomain(codebookItem, getChildElementsWithName(conceptListElement, "exception"));
+            addValueDomain(codebookItem, valuDomainElement.getConcepts());
+            addValueDomain(codebookItem, valuDomainElement.getExceptions());
             codebookItem.sortCodeList();
         } catch(Exception e){
             // for some reason the codelist is broken
@@ -466,14 +697,14 @@ public class CodebookArtDecor extends CodebookDefault {
      * @param codebookItem  the codebookItem to which to addChild the value set
      * @param elements      list with elements from the valueSet
      */
-    private void addValueDomain(CodebookItemArtDecor codebookItem, List<Element> elements) {
+    private void addValueDomain(CodebookItemArtDecor codebookItem, List<CodelistEntry> elements) {
         // for all elements, look for the code, codebooksystem name and name
-        for (Element entryElement : elements) {
+        for (CodelistEntry entryElement : elements) {
             String valueCode="";
             String valueCodeSystemName="";
             String displayName="";
-            String id = getAttributeValue(entryElement, "id");
-            String textInLanguage = getElementValue(entryElement, "name");
+            String id = entryElement.id;
+            String textInLanguage = entryElement.name;
 
             // as far as I'm currently aware (RIVM) when we're dealing with valueDomain
             // based codelists, the codesystem etc should be in the terminologyAssociation tags, which
@@ -510,6 +741,10 @@ public class CodebookArtDecor extends CodebookDefault {
      * @param element
      */
     private void addCodeSystem(Element element){
+        // the expression searches the entire document, so we only have to do this once per document
+        if(!codeSystemDocuments.add(element.getOwnerDocument())){
+            return;
+        }
         handleCodeSystems(element, "//sourceCodeSystem", "id", "identifierName");
 //        handleCodeSystems(element, "//terminologyAssociation", "codeSystem", "codeSystemName");
     }
@@ -529,23 +764,56 @@ public class CodebookArtDecor extends CodebookDefault {
     }
 
     /**
-     * Terminology objects, based on the terminologyAssociation Tag
+     * The nodes that were created for a referenced concept, which can be copied when the concept is referenced again
+     * Which nodes are created depends on the infinite reference checks done while building the subtree, so we keep
+     * track of the ids that were checked. The subtree can't be reused if one of these ids has been visited.
      */
-    class TerminologyElement{
-        private String code="";
-        private String codeSystem="";
-        private String displayName="";
-        private String codeSystemName="";
+    private static class ReferencedSubtree {
+        private final List<CodebookStructureNode> nodes = new ArrayList<>();
+        private final Set<String> checkedIds = new HashSet<>();
+        private boolean reusable = true;
+
+        /**
+         * returns whether the subtree is the same as it would be when it's built in the current branch
+         * @param visitedIds the ids visited in the current branch
+         * @return true/false
+         */
+        private boolean isReusable(Collection<String> visitedIds){
+            return reusable && Collections.disjoint(checkedIds, visitedIds);
+        }
+    }
+
+    /**
+     * signals that the xml file is structured in a way that the streaming parser can't handle
+     */
+    private static class StreamingNotSupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
 
-        TerminologyElement(Element element){
-            generateTerminologyElement(element);
+        StreamingNotSupportedException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * Terminology objects, based on the terminologyAssociation Tag
+     */
+    static class TerminologyElement{
+        private final String conceptId;
+        private final String code;
+        private final String codeSystem;
+        private final String displayName;
+        private final String codeSystemName;
+
+        TerminologyElement(String conceptId, String code, String codeSystem, String displayName, String codeSystemName){
+            this.conceptId = conceptId;
+            this.code = code;
+            this.codeSystem = codeSystem;
+            this.displayName = displayName;
+            this.codeSystemName = codeSystemName;
         }
 
-        private void generateTerminologyElement(Element element){
-            code = getAttributeValue(element, "code");
-            codeSystem = getAttributeValue(element, "codeSystem");
-            displayName = getAttributeValue(element, "displayName");
-            codeSystemName = getAttributeValue(element, "codeSystemName");
+        public String getConceptId() {
+            return conceptId;
         }
 
         public String getCode() {
@@ -21,21 +21,31 @@ package icrfgenerator.codebook.artdecor;
 
 import icrfgenerator.codebook.CodebookMetaDataDefault;
 import icrfgenerator.settings.GlobalSettings;
+import icrfgenerator.utils.CacheFileUtils;
+import icrfgenerator.utils.CacheManifest;
+import icrfgenerator.utils.RestCalls;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.net.URL;
-import java.net.URLConnection;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
+import static icrfgenerator.utils.XMLUtils.getAttributeValue;
+
 /**
  * meta data for a codebook, e.g. name, languages, dataset versions, etc.
+ * the project index is cached, so the datasets can be shown without waiting for the server. A cached index that
+ * is too old is used as well, but is refreshed in the background. The refreshed index isn't pushed to the GUI: pages
+ * which are already showing the datasets keep showing them until they are opened again, and codebooks which were
+ * already loaded are not loaded again. Anything that looks up the metadata afterwards, such as checking which
+ * version of a dataset a cached file has to contain, uses the refreshed index.
  */
 public class CodebookArtDecorMetaData extends CodebookMetaDataDefault {
     private static final Logger logger = LogManager.getLogger(CodebookArtDecorMetaData.class.getName());
@@ -55,46 +65,100 @@ public class CodebookArtDecorMetaData extends CodebookMetaDataDefault {
      */
     private void parseXMLMetaData() {
         String uri = getMetaDataURI();
+        File metaDataFile = getMetaDataFile();
 
         logger.log(Level.DEBUG, "Attempting to retrieve metadata for codebook {} available using {}", codebookName, uri);
 
         try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-
-            // open a url connection
-            URL url = new URL(uri);
-            URLConnection urlConnection = url.openConnection();
-
-            // set the connection timeout as specified in the global settings
-            urlConnection.setConnectTimeout(GlobalSettings.getMetaDataConnectionTimeout());
-            urlConnection.setReadTimeout(GlobalSettings.getMetaDataReadTimeout());
-
-            // get a stream to read data from
-            Document dom = documentBuilder.parse(urlConnection.getInputStream());
-
-            // get the root element
-            Element roottElement = dom.getDocumentElement();
-
-            parseData(roottElement);
-
+            if(metaDataFile.exists() && parseCachedFile(metaDataFile)){
+                // use what we have and check with the server afterwards, so the datasets can be shown right away
+                refreshInBackground(uri, metaDataFile);
+            }
+            else {
+                idToDatasetMetaDataMap.putAll(parseFile(RestCalls.getFile(uri, metaDataFile.getPath())));
+            }
         } catch (Exception e) {
             throw new RuntimeException("Exception occurred while attempting to retrieve which version are available for the codebook: " + e.getMessage());
         }
     }
 
     /**
-     * start parsing from the root element
-     * @param documentElement the root element
+     * parses the cached metadata
+     * a cached file that can't be parsed, e.g. because it was truncated, is removed, so it is retrieved again
+     * @param metaDataFile the cached metadata
+     * @return whether the cached metadata could be used
+     */
+    private boolean parseCachedFile(File metaDataFile){
+        try {
+            idToDatasetMetaDataMap.putAll(parseFile(metaDataFile));
+            return true;
+        } catch (IOException | XMLStreamException e) {
+            logger.log(Level.WARN, "Unable to read the cached metadata for codebook {}; retrieving it again: {}", codebookName, e.getMessage());
+            CacheManifest.getInstance().remove(metaDataFile);
+            if(!metaDataFile.delete()){
+                logger.log(Level.ERROR, "Unable to remove the file "+metaDataFile.getName());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * checks with the server whether the cached metadata is still up to date once it is too old
+     * when the server sends a new version, the metadata is replaced by it as a whole, so datasets which were removed
+     * disappear and the metadata is never a mix of both versions
+     * @param uri          URI where the metadata can be found
+     * @param metaDataFile the cached metadata
      */
-    private void parseData(Element documentElement) {
-            // get a nodelist of elements
-            NodeList nodeList = documentElement.getElementsByTagName("dataset");
+    private void refreshInBackground(String uri, File metaDataFile){
+        long lastModified = metaDataFile.lastModified();
+        RestCalls.getFileAsync(uri, metaDataFile.getPath(), null, GlobalSettings.getMetaDataMaxAge()).thenAccept(file -> {
+            if(file.lastModified()==lastModified){
+                return;
+            }
+            try {
+                replaceDatasetMetaData(parseFile(file));
+                logger.log(Level.INFO, "Updated the metadata for codebook {}; datasets shown already are updated once they are shown again", codebookName);
+            } catch (IOException | XMLStreamException e) {
+                logger.log(Level.WARN, "Unable to read the updated metadata for codebook {}: {}", codebookName, e.getMessage());
+            }
+        }).exceptionally(e -> {
+            logger.log(Level.WARN, "Unable to refresh the metadata for codebook {}: {}", codebookName, e.getMessage());
+            return null;
+        });
+    }
 
-            // loop over the nodelist
-            if(nodeList != null) {
-                parseNodeList(nodeList);
+    /**
+     * returns the file in which the metadata is cached
+     * @return the file in which the metadata is cached
+     */
+    private File getMetaDataFile() {
+        String prefix = GlobalSettings.getCodebookPrefix(codebookName).replaceAll("[^a-zA-Z0-9._-]", "_");
+        return new File(GlobalSettings.getCacheDir()+File.separator+"projectIndex_"+prefix+".xml");
+    }
+
+    /**
+     * parses the metadata in a single streaming pass
+     * @param file the metadata xml
+     * @return map with the metadata of the non-deprecated datasets
+     * @throws IOException issue reading the file
+     * @throws XMLStreamException issue with the xml
+     */
+    private Map<String, DatasetMetaData> parseFile(File file) throws IOException, XMLStreamException {
+        Map<String, DatasetMetaData> datasetMetaDataMap = new HashMap<>();
+        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        try (InputStream inputStream = CacheFileUtils.openInputStream(file)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+            try {
+                while(reader.hasNext()){
+                    if(reader.next()==XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("dataset")){
+                        parseDataset(reader, datasetMetaDataMap);
+                    }
+                }
+            } finally {
+                reader.close();
             }
+        }
+        return datasetMetaDataMap;
     }
 
     /**
@@ -107,56 +171,63 @@ public class CodebookArtDecorMetaData extends CodebookMetaDataDefault {
 
 
     /**
-     * Parses the nodeList to find the codebook metadata
-     * @param nodeList nodeList to parse
+     * Parses a dataset element to find the codebook metadata
+     * @param reader             stream reader positioned at the start of a dataset element; it is positioned at its
+     *                           end element afterwards
+     * @param datasetMetaDataMap map to which the metadata is added
+     * @throws XMLStreamException issue with the xml
      */
-    private void parseNodeList(NodeList nodeList){
-        for(int i=0; i<nodeList.getLength(); i++) {
-            // retrieve the interesting meta data for the codebook
-            Element element = (Element) nodeList.item(i);
-            String version = element.getAttribute("versionLabel");
-            String id = element.getAttribute("id");
-            String name = element.getAttribute("displayName");
-            String statusCode = element.getAttribute("statusCode");
-            String effectiveDate = element.getAttribute("effectiveDate");
-
-            // only store non-deprecated datasets
-            if(!statusCode.equalsIgnoreCase("deprecated")) {
-                DatasetMetaData datasetMetaData = new DatasetMetaData(id, version, name, effectiveDate, findLanguages(element));
-
-                if (idToDatasetMetaDataMap.containsKey(id)) {
-                    logger.log(Level.ERROR, "The meta data table already contains data for id {}. This is unexpected. Skipping this one.\n", id);
-                }
-                else {
-                    idToDatasetMetaDataMap.put(id, datasetMetaData);
-                }
+    private void parseDataset(XMLStreamReader reader, Map<String, DatasetMetaData> datasetMetaDataMap) throws XMLStreamException {
+        // retrieve the interesting meta data for the codebook
+        String version = getAttributeValue(reader, "versionLabel");
+        String id = getAttributeValue(reader, "id");
+        String name = getAttributeValue(reader, "displayName");
+        String statusCode = getAttributeValue(reader, "statusCode");
+        String effectiveDate = getAttributeValue(reader, "effectiveDate");
+        List<String> languages = findLanguages(reader);
+
+        // only store non-deprecated datasets
+        if(!statusCode.equalsIgnoreCase("deprecated")) {
+            DatasetMetaData datasetMetaData = new DatasetMetaData(id, version, name, effectiveDate, languages);
+
+            if (datasetMetaDataMap.containsKey(id)) {
+                logger.log(Level.ERROR, "The meta data table already contains data for id {}. This is unexpected. Skipping this one.\n", id);
+            }
+            else {
+                datasetMetaDataMap.put(id, datasetMetaData);
             }
-            logger.log(Level.INFO, "versionlabel found: {} id found: {}", element.getAttribute("versionLabel"),element.getAttribute("id"));
         }
+        logger.log(Level.INFO, "versionlabel found: {} id found: {}", version, id);
     }
 
     /**
-     * looks for languages for a version
-     * @param element element
+     * looks for languages for a version in the desc elements within the dataset element
+     * @param reader stream reader positioned at the start of a dataset element; it is positioned at its end element afterwards
      * @return list of languages found for the version
+     * @throws XMLStreamException issue with the xml
      */
-    private List<String> findLanguages(Element element){
+    private List<String> findLanguages(XMLStreamReader reader) throws XMLStreamException {
         List<String> languages = new ArrayList<>();
-        NodeList nodeList = element.getElementsByTagName("desc");
-        if(nodeList != null) {
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                Element descElement = (Element) nodeList.item(i);
-                String language = descElement.getAttribute("language");
-                if(!GlobalSettings.isLowQualityCodebookLanguage(codebookName, language)) {
-                    languages.add(language);
-                }
-                else{
-                    System.err.println("Skipping codebook "+ codebookName + " in language "+language+" due to low-quality...");
+        int depth = 1;
+        while(depth>0){
+            int event = reader.next();
+            if(event==XMLStreamConstants.START_ELEMENT){
+                depth++;
+                if(reader.getLocalName().equals("desc")){
+                    String language = getAttributeValue(reader, "language");
+                    if(!GlobalSettings.isLowQualityCodebookLanguage(codebookName, language)) {
+                        languages.add(language);
+                    }
+                    else{
+                        System.err.println("Skipping codebook "+ codebookName + " in language "+language+" due to low-quality...");
+                    }
                 }
             }
+            else if(event==XMLStreamConstants.END_ELEMENT){
+                depth--;
+            }
         }
         return languages;
     }
 
 }
-
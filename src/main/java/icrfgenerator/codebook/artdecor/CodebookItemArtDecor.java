@@ -48,12 +48,22 @@ public class CodebookItemArtDecor extends CodebookItemDefault {
         super(id, itemName, description, dataType, nodeType, code, codeSystem, codeDescription, artDecorPropertiesMap);
     }
 
+    /**
+     * create a copy of an item with a new id, e.g. when a referenced concept is used more than once
+     * @param id    id for the copy
+     * @param other the item to copy
+     */
+    CodebookItemArtDecor(String id, CodebookItemArtDecor other){
+        super(id, other);
+    }
+
     /**
      * if there is a problems with a codelist, don't use it and give an error message for it
      */
     void setBrokenCodeList(){
         logger.log(Level.ERROR, "{} has codelist issues... skipping the codelist", itemName);
         codelistItemList.clear();
+        codelistChanged();
         dataType="string";
     }
 
@@ -84,6 +94,7 @@ public class CodebookItemArtDecor extends CodebookItemDefault {
                 codelistItemList.add(new CodelistItem("Code_" + (i+1), textvalue, displayName, "Generated"));
             }
             codeDataType = "string";
+            codelistChanged();
         }
         toGenerateCodeListItemList.clear();
     }
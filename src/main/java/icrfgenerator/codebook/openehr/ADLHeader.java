@@ -0,0 +1,249 @@
+package icrfgenerator.codebook.openehr;
+
+import com.nedap.archie.aom.Archetype;
+import com.nedap.archie.aom.ArchetypeHRID;
+import icrfgenerator.utils.CacheFileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * the details of an archetype that are needed for the codebook's metadata: its id, release version and the
+ * languages of its term definitions
+ * these are found by scanning the ADL text, which is a lot faster than parsing and compiling the archetype
+ */
+class ADLHeader {
+    // e.g. archetype (adl_version=2.0.6; rm_release=1.0.2; generated)
+    private static final Pattern artefactTypePattern = Pattern.compile("^(archetype|template|operational_template)\\b.*");
+    // e.g. ["en"] = <
+    private static final Pattern keyPattern = Pattern.compile("\\[\"([^\"]+)\"]\\s*=\\s*$");
+
+    private final ArchetypeHRID archetypeId;
+    private final List<String> languages;
+
+    private ADLHeader(ArchetypeHRID archetypeId, List<String> languages){
+        this.archetypeId = archetypeId;
+        this.languages = languages;
+    }
+
+    /**
+     * scans an ADL file for its archetype id and the languages of its term definitions
+     * @param file the ADL file
+     * @return the header or null if the file doesn't contain the expected sections
+     * @throws IOException issue reading the file
+     */
+    static ADLHeader scan(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(CacheFileUtils.openInputStream(file), StandardCharsets.UTF_8))) {
+            String archetypeId = findArchetypeId(reader);
+            if(archetypeId==null || !skipToSection(reader, "terminology")){
+                return null;
+            }
+            List<String> languages = findTermDefinitionLanguages(reader);
+            if(languages==null || languages.isEmpty()){
+                return null;
+            }
+            return new ADLHeader(new ArchetypeHRID(archetypeId), languages);
+        } catch (IllegalArgumentException e) {
+            // not a valid archetype id
+            return null;
+        }
+    }
+
+    /**
+     * creates the header of an archetype that was parsed, e.g. when its file couldn't be scanned
+     * @param archetype the parsed archetype
+     * @return the header
+     */
+    static ADLHeader fromArchetype(Archetype archetype){
+        return new ADLHeader(archetype.getArchetypeId(), new ArrayList<>(archetype.getTerminology().getTermDefinitions().keySet()));
+    }
+
+    /**
+     * returns the archetype id, which is the first line following the line with the artefact type
+     * @param reader reader at the start of the file
+     * @return the archetype id or null if it isn't found
+     * @throws IOException issue reading the file
+     */
+    private static String findArchetypeId(BufferedReader reader) throws IOException {
+        String line;
+        boolean foundArtefactType = false;
+        while((line = reader.readLine())!=null){
+            // ignore a byte order mark at the start of the file
+            String trimmedLine = line.replace("\uFEFF", "").strip();
+            if(trimmedLine.isEmpty()){
+                continue;
+            }
+            if(foundArtefactType){
+                return trimmedLine;
+            }
+            if(!artefactTypePattern.matcher(trimmedLine).matches()){
+                return null;
+            }
+            foundArtefactType = true;
+        }
+        return null;
+    }
+
+    /**
+     * moves the reader to just after the line which starts a section
+     * sections start with their name at the start of a line
+     * @param reader      the reader
+     * @param sectionName name of the section
+     * @return whether the section was found
+     * @throws IOException issue reading the file
+     */
+    private static boolean skipToSection(BufferedReader reader, String sectionName) throws IOException {
+        String line;
+        while((line = reader.readLine())!=null){
+            if(line.stripTrailing().equals(sectionName)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * returns the keys of the term_definitions block, which are the languages
+     * the block is written in ODIN, e.g.
+     * term_definitions = <
+     *     ["en"] = <
+     *         ["id1"] = < text = <"Blood pressure"> ... >
+     *     >
+     * @param reader reader positioned in the terminology section
+     * @return the languages or null if there are no term definitions
+     * @throws IOException issue reading the file
+     */
+    private static List<String> findTermDefinitionLanguages(BufferedReader reader) throws IOException {
+        String line;
+        while((line = reader.readLine())!=null && !line.strip().startsWith("term_definitions")){
+            // sections start at the start of a line; the terminology section ended without term definitions
+            if(!line.isEmpty() && !Character.isWhitespace(line.charAt(0))){
+                return null;
+            }
+        }
+        if(line==null){
+            return null;
+        }
+
+        List<String> languages = new ArrayList<>();
+        StringBuilder key = new StringBuilder();
+        // the term_definitions line itself opens the block at depth 1
+        int depth = 0;
+        boolean inString = false;
+        String remainder = stripComment(line.substring(line.indexOf("term_definitions")+"term_definitions".length()));
+        for(char c:remainder.toCharArray()){
+            if(c=='<'){
+                depth++;
+            }
+        }
+        if(depth!=1){
+            return null;
+        }
+
+        int character;
+        while((character = reader.read())!=-1){
+            char c = (char) character;
+            if(inString){
+                if(c=='\\'){
+                    reader.read();
+                }
+                else if(c=='"'){
+                    inString = false;
+                }
+                if(depth==1){
+                    key.append(c);
+                }
+                continue;
+            }
+            switch (c){
+                case '"' -> {
+                    inString = true;
+                    if(depth==1){
+                        key.append(c);
+                    }
+                }
+                case '<' -> {
+                    if(depth==1){
+                        Matcher matcher = keyPattern.matcher(key);
+                        if(matcher.find()){
+                            languages.add(matcher.group(1));
+                        }
+                        key.setLength(0);
+                    }
+                    depth++;
+                }
+                case '>' -> {
+                    depth--;
+                    if(depth==0){
+                        return languages;
+                    }
+                }
+                case '-' -> {
+                    // an ODIN comment runs until the end of the line and may contain anything, e.g. < and >
+                    reader.mark(1);
+                    if(reader.read()=='-'){
+                        reader.readLine();
+                    }
+                    else {
+                        reader.reset();
+                        if(depth==1){
+                            key.append(c);
+                        }
+                    }
+                }
+                default -> {
+                    if(depth==1){
+                        key.append(c);
+                    }
+                }
+            }
+        }
+        // the file ended before the block was closed
+        return null;
+    }
+
+    /**
+     * removes an ODIN comment from a line, which starts with -- outside a string
+     * @param line the line
+     * @return the line without the comment
+     */
+    private static String stripComment(String line){
+        boolean inString = false;
+        for(int i=0; i<line.length(); i++){
+            char c = line.charAt(i);
+            if(inString && c=='\\'){
+                i++;
+            }
+            else if(c=='"'){
+                inString = !inString;
+            }
+            else if(!inString && line.startsWith("--", i)){
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * returns the release version of the archetype
+     * @return the release version of the archetype
+     */
+    String getReleaseVersion(){
+        return archetypeId.getReleaseVersion();
+    }
+
+    /**
+     * returns the languages of the term definitions
+     * @return the languages of the term definitions
+     */
+    List<String> getLanguages(){
+        return languages;
+    }
+}
@@ -0,0 +1,69 @@
+package icrfgenerator.codebook.openehr;
+
+import com.nedap.archie.aom.Archetype;
+import com.nedap.archie.aom.terminology.ArchetypeTerm;
+import com.nedap.archie.aom.terminology.ArchetypeTerminology;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * lookup tables for the terms and term bindings of a flattened archetype
+ * the tables are built once when the archetype is added to the repository, so the codes of the codebook's items
+ * can be resolved with a single hash lookup instead of going through the archetype's terminology for every code
+ */
+class ArchetypeTermLookup {
+    // language -> code -> term
+    private final Map<String, Map<String, ArchetypeTerm>> terms = new HashMap<>();
+    // code -> {codesystem, code in the codesystem}
+    private final Map<String, String[]> bindings = new HashMap<>();
+
+    /**
+     * builds the lookup tables for an archetype
+     * @param archetype the flattened archetype
+     */
+    ArchetypeTermLookup(Archetype archetype){
+        ArchetypeTerminology terminology = archetype.getTerminology();
+        if(terminology==null){
+            return;
+        }
+        if(terminology.getTermDefinitions()!=null) {
+            for (Map.Entry<String, Map<String, ArchetypeTerm>> entry : terminology.getTermDefinitions().entrySet()) {
+                terms.put(entry.getKey(), new HashMap<>(entry.getValue()));
+            }
+        }
+        if(terminology.getTermBindings()!=null) {
+            for (Map.Entry<String, Map<String, URI>> entry : terminology.getTermBindings().entrySet()) {
+                String codesystem = entry.getKey();
+                for (Map.Entry<String, URI> binding : entry.getValue().entrySet()) {
+                    // a code bound in several codesystems uses the first codesystem it is found in
+                    if (!bindings.containsKey(binding.getKey())) {
+                        String uriString = binding.getValue().toString();
+                        bindings.put(binding.getKey(), new String[]{codesystem, uriString.substring(uriString.lastIndexOf("/") + 1)});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * returns the term of a code
+     * @param code     the code
+     * @param language language of the term
+     * @return the term or null if the code has no term in the language
+     */
+    ArchetypeTerm getTerm(String code, String language){
+        Map<String, ArchetypeTerm> languageTerms = terms.get(language);
+        return languageTerms==null ? null : languageTerms.get(code);
+    }
+
+    /**
+     * returns the codesystem and the code in this system a code is bound to via term_bindings
+     * @param code the code
+     * @return array with codesystem and the code of this term in the system or null if the code isn't bound
+     */
+    String [] getBinding(String code){
+        return bindings.get(code);
+    }
+}
@@ -0,0 +1,100 @@
+package icrfgenerator.codebook.openehr;
+
+import icrfgenerator.settings.GlobalSettings;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * remembers the citeable identifiers CKM returned for referenced archetypes, so opening a template doesn't require a
+ * call for each of its references on every run
+ * archetypes that don't exist are remembered as well, as an empty identifier. As new archetypes may be published,
+ * these are forgotten sooner than the identifiers that were found.
+ * the identifiers are stored in a properties file in the cache directory, with the call's URI as key and the time
+ * of the call and the identifier as value. New identifiers are written to this file once a codebook is built,
+ * rather than each time one is found.
+ */
+class CiteableIdentifierCache {
+    private static final Logger logger = LogManager.getLogger(CiteableIdentifierCache.class.getName());
+    private static final String cacheFileName = GlobalSettings.getCacheDir()+File.separator+"citeableIdentifiers.properties";
+    private static final String separator = ";";
+
+    private static final CiteableIdentifierCache citeableIdentifierCache = new CiteableIdentifierCache();
+
+    private final Properties properties = new Properties();
+    // whether there are identifiers which haven't been written to disk yet
+    private boolean unsaved = false;
+
+    static CiteableIdentifierCache getInstance(){
+        return citeableIdentifierCache;
+    }
+
+    private CiteableIdentifierCache(){
+        File cacheFile = new File(cacheFileName);
+        if(cacheFile.exists()){
+            try (Reader reader = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                // without the stored identifiers, they're simply retrieved again
+                logger.log(Level.WARN, "Unable to read the stored citeable identifiers: "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * returns the identifier that was found for a call
+     * @param uri        the call's URI
+     * @param allowStale whether to return the identifier even if it is too old, e.g. when the server can't be reached
+     * @return the identifier, an empty String if the archetype doesn't exist or null if we don't know
+     */
+    synchronized String get(String uri, boolean allowStale){
+        String value = properties.getProperty(uri);
+        if(value==null || !value.contains(separator)){
+            return null;
+        }
+        long time = Long.parseLong(value.substring(0, value.indexOf(separator)));
+        String identifier = value.substring(value.indexOf(separator)+1);
+        long maxAge = identifier.isEmpty() ? GlobalSettings.getMetaDataMaxAge() : GlobalSettings.getCacheMaxAge();
+        if(!allowStale && System.currentTimeMillis()-time>maxAge){
+            return null;
+        }
+        return identifier;
+    }
+
+    /**
+     * store the identifier that was found for a call
+     * @param uri        the call's URI
+     * @param identifier the identifier or an empty String if the archetype doesn't exist
+     */
+    synchronized void put(String uri, String identifier){
+        properties.setProperty(uri, System.currentTimeMillis()+separator+identifier);
+        unsaved = true;
+    }
+
+    /**
+     * write the identifiers to disk if identifiers were found since they were last written
+     * a temporary file is written first, so an interrupted write doesn't leave a broken file behind
+     */
+    synchronized void save(){
+        if(!unsaved){
+            return;
+        }
+        unsaved = false;
+        File cacheFile = new File(cacheFileName);
+        File tmpFile = new File(cacheFileName+".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                properties.store(writer, "iCRFGenerator citeable identifiers");
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.WARN, "Unable to store the citeable identifiers: "+e.getMessage());
+        }
+    }
+}
@@ -17,4 +17,13 @@ public class CodebookItemOpenEHR extends CodebookItemDefault {
         super(id, itemName, description, dataType, nodeType, code, codeSystem, codeDescription, new HashMap<>());
     }
 
+    /**
+     * create a copy of an item with a new id, e.g. when a referenced codebook is used more than once
+     * @param id    id for the copy
+     * @param other the item to copy
+     */
+    CodebookItemOpenEHR(String id, CodebookItemOpenEHR other){
+        super(id, other);
+    }
+
 }
@@ -9,6 +9,8 @@ import com.nedap.archie.rules.Assertion;
 import icrfgenerator.codebook.CodebookDefault;
 import icrfgenerator.codebook.CodebookItem;
 import icrfgenerator.codebook.CodebookItemDefault;
+import icrfgenerator.codebook.CodebookManager;
+import icrfgenerator.codebook.SourceFile;
 import icrfgenerator.codebook.shared.CodebookStructureNode;
 import icrfgenerator.types.NodeType;
 import icrfgenerator.types.OperatorType;
@@ -17,17 +19,29 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.net.URI;
+import java.io.File;
 import java.time.Duration;
 import java.time.Period;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class CodebookOpenEHR extends CodebookDefault {
     private static final Logger logger = LogManager.getLogger(CodebookOpenEHR.class.getName());
+    // e.g. DV_INTERVAL<DV_QUANTITY>
+    private static final Pattern intervalPattern = Pattern.compile(".*<(.*)>");
+    // e.g. [|PT0S..PT12H|] and [|>=PT0S|]
+    private static final Pattern durationRangePattern = Pattern.compile("\\.\\.");
+    private static final Pattern nonWordPattern = Pattern.compile("\\W");
+    private static final Pattern durationConstraintPattern = Pattern.compile(".*?([>=<]*)(\\w+).*");
     private final List<String> doubleDetectList = new ArrayList<>();
+    // subtrees built for referenced codebooks, which are copied when the codebook is referenced again
+    private final Map<String, ReferencedSubtree> referencedSubtreeMap = new HashMap<>();
+    private final Deque<ReferencedSubtree> referencedSubtreesInProgress = new ArrayDeque<>();
+    // ids created by getUniqueId and getCopyId --> the id without the number, which copies get a new number for
+    private final Map<String, String> uniqueIdBaseMap = new HashMap<>();
 
     private int id_cnt=0;
 
@@ -39,7 +53,19 @@ public class CodebookOpenEHR extends CodebookDefault {
      */
     public CodebookOpenEHR(String datasetId, String extendedLanguage, String codebookName){
         super(datasetId, extendedLanguage, codebookName);
-        createBook(codebookName, root);
+        // the parsed codebooks are only kept in memory while codebooks are being built
+        OpenEHRCodebookRepository.startBuild();
+        try {
+            // the metadata only scans the codebook, so it may not have been parsed yet
+            OpenEHRCodebookRepository.addCodebook(codebookName);
+            prefetchRefCodebooks();
+            createBook(codebookName, root);
+        } finally {
+            OpenEHRCodebookRepository.finishBuild();
+        }
+        // the subtrees are only reused while building the tree
+        referencedSubtreeMap.clear();
+        uniqueIdBaseMap.clear();
     }
 
     /**
@@ -49,7 +75,34 @@ public class CodebookOpenEHR extends CodebookDefault {
      * @return a unique version of the identifier
      */
     String getUniqueId(String curCodebookName, String id){
-        return KeyUtils.getKey(curCodebookName, id, Integer.toString(id_cnt++));
+        return numberId(KeyUtils.getKey(curCodebookName, id));
+    }
+
+    /**
+     * adds the next number within the codebook to an id and remembers which id was numbered
+     * @param baseId the id without a number
+     * @return the numbered id
+     */
+    private String numberId(String baseId){
+        String uniqueId = KeyUtils.getKey(baseId, Integer.toString(id_cnt++));
+        uniqueIdBaseMap.put(uniqueId, baseId);
+        return uniqueId;
+    }
+
+    /**
+     * returns the id for a copy of an item
+     * ids created by getUniqueId get a new number; the ids of archetype slots, which aren't made unique, are kept
+     * @param id the id of the item that is copied
+     * @return id for the copy
+     */
+    private String getCopyId(String id){
+        // archetype ids may contain underscores themselves, e.g. openEHR-EHR-OBSERVATION.blood_pressure.v2, so only
+        // renumber the ids that were actually numbered
+        String baseId = uniqueIdBaseMap.get(id);
+        if(baseId==null){
+            return id;
+        }
+        return numberId(baseId);
     }
 
 
@@ -59,6 +112,10 @@ public class CodebookOpenEHR extends CodebookDefault {
      * @param codebookStructureNode structure node
      */
     private void createBook(String curCodebookName, CodebookStructureNode codebookStructureNode){
+        SourceFile sourceFile = OpenEHRCodebookRepository.getSourceFile(curCodebookName);
+        if(sourceFile!=null){
+            addSourceFile(sourceFile);
+        }
         Archetype archetype = OpenEHRCodebookRepository.getArchetype(curCodebookName);
         List<CAttribute> attributeList = archetype.getDefinition().getAttributes();
         descendTree(curCodebookName, attributeList, codebookStructureNode);
@@ -169,10 +226,9 @@ public class CodebookOpenEHR extends CodebookDefault {
      * @param codebookItemList   list to which we're adding newly created CodebookItems
      */
     private void createChild(String id, String itemName, CObject baseObject, CObject childDetailsObject, String curCodebookName, List<CodebookItem> codebookItemList) {
-        Pattern p = Pattern.compile(".*<(.*)>");
         String childType = childDetailsObject.getRmTypeName();
         String description = OpenEHRCodebookRepository.getItemDescription(curCodebookName, baseObject, extendedLanguage);
-        Matcher matcher = p.matcher(childType);
+        Matcher matcher = intervalPattern.matcher(childType);
         if(matcher.matches()){
             // grab what type of interval we're dealing with, e.g. DV_DATE
             String intervalOf = matcher.group(1);
@@ -295,21 +351,20 @@ public class CodebookOpenEHR extends CodebookDefault {
      * @param durationConstraint  string representation of the constraints
      */
     private static void convertDuration(CodebookItemOpenEHR codebookItemOpenEHR, String durationConstraint){
-        List<String> constraints = Arrays.asList(durationConstraint.split("\\.\\."));
+        List<String> constraints = Arrays.asList(durationRangePattern.split(durationConstraint));
         String symbol="=";
 
         if(constraints.size()>1){
             // in this case it should be a range - e.g. [|PT0S..PT12H|], which then becomes:
             // constraints = [PT0S, PT12H]
             // symbol = "="
-            constraints = constraints.stream().map(t->t.replaceAll("\\W", "")).collect(Collectors.toList());
+            constraints = constraints.stream().map(t->nonWordPattern.matcher(t).replaceAll("")).collect(Collectors.toList());
         }
         else if(constraints.size()==1){
             // in this case there could be a >= kind of construction in the string, e.g. [|>=PT0S|], which then becomes:
             // constraints = [PT0S]
             // symbol = ">="
-            Pattern pattern = Pattern.compile(".*?([>=<]*)(\\w+).*");
-            Matcher matcher = pattern.matcher(constraints.get(0));
+            Matcher matcher = durationConstraintPattern.matcher(constraints.get(0));
             if(matcher.matches()){
                 constraints = List.of(matcher.group(2));
                 if(matcher.group(1)!=null) {
@@ -622,19 +677,7 @@ public class CodebookOpenEHR extends CodebookDefault {
      * @return array with codesystem and the code of this term in the system
      */
     private String [] getBinding(String curCodebookName, String code){
-        Map<String, Map<String, URI>> termBindings = OpenEHRCodebookRepository.getTermBindings(curCodebookName);
-        for (Map.Entry<String, Map<String, URI>> entry : termBindings.entrySet()) {
-            Map<String, URI> systemBindingMap = entry.getValue();
-
-            if (systemBindingMap.containsKey(code)) {
-                String codesystem = entry.getKey();
-                String uriString = systemBindingMap.get(code).toString();
-                String codeInCodeSystem = uriString.substring(uriString.lastIndexOf("/")+1);
-                return new String[]{codesystem, codeInCodeSystem};
-            }
-
-        }
-        return null;
+        return OpenEHRCodebookRepository.getBinding(curCodebookName, code);
     }
 
 
@@ -736,6 +779,8 @@ public class CodebookOpenEHR extends CodebookDefault {
         for (Map.Entry<String, List<Integer>> entry : refVersionsMap.entrySet()) {
             String refCodebookName = entry.getKey();
             List<Integer> versionList = entry.getValue();
+            // the subtrees we're currently building depend on the outcome of the check below
+            referencedSubtreesInProgress.forEach(t->t.checkedNames.add(refCodebookName));
             // In this tree branch, prevent that a codebook is referenced more than once
             // E.g.
             //  GroupItem
@@ -763,6 +808,9 @@ public class CodebookOpenEHR extends CodebookDefault {
             }
             // show a message in the leaf that the branch is not expanded to prevent infinite expansion
             else{
+                // the subtrees started below the referenced codebook depend on what was visited before them; don't reuse them
+                int position = doubleDetectList.indexOf(refCodebookName);
+                referencedSubtreesInProgress.stream().filter(t->position<t.branchDepth).forEach(t->t.reusable = false);
                 String newDescription = description+"\nBranch not added to prevent infinite expansion\nReference: "+refCodebookName.substring(0, refCodebookName.length()-2);
                 addItem(new CodebookItemOpenEHR(id, name, newDescription, NodeType.LEAFINFOITEM), codebookStructureNode);
             }
@@ -792,6 +840,98 @@ public class CodebookOpenEHR extends CodebookDefault {
         return new String[]{refCodebookId, fullRefName};
     }
 
+    /**
+     * loads the codebooks referenced by archetype slots before the tree is built
+     * the references are followed level by level: the codebooks referenced at one level are resolved, downloaded and
+     * parsed concurrently, after which the codebooks these reference are loaded. Building the tree then only uses
+     * codebooks which are already in memory.
+     * codebooks which fail to load here are simply tried again while building the tree
+     * the loading is done by the pool of threads the codebook manager shares among all codebooks, which limits the
+     * concurrent downloads
+     */
+    private void prefetchRefCodebooks(){
+        Set<String> seenRefCodebookNames = new HashSet<>();
+        List<String> curCodebookNames = List.of(codebookName);
+        try {
+            while(!curCodebookNames.isEmpty()){
+                List<Callable<String>> loaders = new ArrayList<>();
+                for(String curCodebookName:curCodebookNames){
+                    for(Map.Entry<String, List<Integer>> entry:getRefsVersionsMap(curCodebookName).entrySet()){
+                        if(!entry.getKey().equalsIgnoreCase("ANY") && seenRefCodebookNames.add(entry.getKey())){
+                            loaders.add(() -> prefetchRefCodebook(entry.getKey(), entry.getValue()));
+                        }
+                    }
+                }
+
+                List<String> nextCodebookNames = new ArrayList<>();
+                for(Future<String> future:CodebookManager.getInstance().getPrefetchExecutor().invokeAll(loaders)){
+                    try {
+                        String fullRefName = future.get();
+                        if(fullRefName!=null){
+                            nextCodebookNames.add(fullRefName);
+                        }
+                    } catch (ExecutionException e) {
+                        logger.log(Level.WARN, "Unable to prefetch a referenced codebook: "+e.getCause().getMessage());
+                    }
+                }
+                curCodebookNames = nextCodebookNames;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * resolves, downloads and parses a referenced codebook
+     * @param refCodebookName name of the referenced codebook
+     * @param versionList     versions referenced of this codebook
+     * @return the full reference name of the codebook or null if it doesn't exist
+     */
+    private String prefetchRefCodebook(String refCodebookName, List<Integer> versionList){
+        String [] refInfo = getRefCodebookInfo(refCodebookName, versionList);
+        if(refInfo[0].equalsIgnoreCase("")){
+            return null;
+        }
+        OpenEHRCodebookRepository.addRefCodebook(codebookName, refInfo[1], refInfo[0]);
+        return refInfo[1];
+    }
+
+    /**
+     * returns the codebooks referenced by all archetype slots in a codebook and their versions
+     * @param curCodebookName name of the codebook
+     * @return map with the referenced codebook names and their versions
+     */
+    private static Map<String, List<Integer>> getRefsVersionsMap(String curCodebookName){
+        Map<String, List<Integer>> refsVersionsMap = new LinkedHashMap<>();
+        Archetype archetype = OpenEHRCodebookRepository.getArchetype(curCodebookName);
+        if(archetype!=null){
+            List<ArchetypeSlot> archetypeSlots = new ArrayList<>();
+            collectArchetypeSlots(archetype.getDefinition().getAttributes(), archetypeSlots);
+            for(ArchetypeSlot archetypeSlot:archetypeSlots){
+                new CodebookIncludes(archetypeSlot.getIncludes()).getRefsVersionsMaps().forEach(refsVersionsMap::putIfAbsent);
+            }
+        }
+        return refsVersionsMap;
+    }
+
+    /**
+     * collects the archetype slots in a part of a codebook's definition
+     * @param attributeList  the attributes to search
+     * @param archetypeSlots list to which the archetype slots are added
+     */
+    private static void collectArchetypeSlots(List<CAttribute> attributeList, List<ArchetypeSlot> archetypeSlots){
+        for(CAttribute cAttribute:attributeList){
+            for(CObject child:cAttribute.getChildren()){
+                if(child instanceof ArchetypeSlot archetypeSlot){
+                    archetypeSlots.add(archetypeSlot);
+                }
+                else{
+                    collectArchetypeSlots(child.getAttributes(), archetypeSlots);
+                }
+            }
+        }
+    }
+
     /**
      *
      * @param refCodebookName       codebook being referenced
@@ -817,13 +957,40 @@ public class CodebookOpenEHR extends CodebookDefault {
             // add a group item as the basis for the referenced codebook
             CodebookItem codebookItem = new CodebookItemOpenEHR(id, name, description, NodeType.GROUPITEM);
             CodebookStructureNode codebookStructureNode1 = addItem(codebookItem, codebookStructureNode);
-            // fetch and prepare the referenced codebook
-            OpenEHRCodebookRepository.addRefCodebook(codebookName, fullRefName, refCodebookId);
-            // call createbook to parse the referenced codebook and add its items to the node we just created
-            createBook(fullRefName, codebookStructureNode1);
+            ReferencedSubtree referencedSubtree = referencedSubtreeMap.get(fullRefName);
+            if(referencedSubtree!=null && referencedSubtree.isReusable(refCodebookName, doubleDetectList)){
+                // we've built this subtree before, so add a copy of it
+                referencedSubtreesInProgress.forEach(t->t.checkedNames.addAll(referencedSubtree.checkedNames));
+                referencedSubtree.nodes.forEach(t->addCopy(t, codebookStructureNode1));
+            }
+            else {
+                // fetch and prepare the referenced codebook
+                OpenEHRCodebookRepository.addRefCodebook(codebookName, fullRefName, refCodebookId);
+                // the referenced codebook itself was added to the double-detection list just before this call
+                ReferencedSubtree newReferencedSubtree = new ReferencedSubtree(doubleDetectList.size()-1);
+                referencedSubtreesInProgress.push(newReferencedSubtree);
+                // call createbook to parse the referenced codebook and add its items to the node we just created
+                createBook(fullRefName, codebookStructureNode1);
+                referencedSubtreesInProgress.pop();
+
+                newReferencedSubtree.nodes.addAll(codebookStructureNode1.getChildren());
+                referencedSubtreeMap.put(fullRefName, newReferencedSubtree);
+            }
         }
     }
 
+    /**
+     * adds a copy of a previously built node and its children to a parent node. The copies get new unique ids.
+     * @param node       the node to copy
+     * @param parentNode the structure node to which the copy is added
+     */
+    private void addCopy(CodebookStructureNode node, CodebookStructureNode parentNode){
+        CodebookItemOpenEHR codebookItem = (CodebookItemOpenEHR) node.getValue();
+        CodebookItemOpenEHR copyItem = new CodebookItemOpenEHR(getCopyId(codebookItem.getId()), codebookItem);
+        CodebookStructureNode newParent = addItem(copyItem, parentNode);
+        node.getChildren().forEach(t->addCopy(t, newParent));
+    }
+
     /**
      * the interval events seem to refer to existing nodes in the tree structure
      * E.g. Blood pressure - 24 hour average
@@ -912,6 +1079,33 @@ public class CodebookOpenEHR extends CodebookDefault {
         }
     }
 
+    /**
+     * the nodes built for a referenced codebook, together with what is needed to decide whether they can be reused
+     * the subtree depends on which referenced codebooks were prevented by the double-detection list while building it
+     */
+    private static class ReferencedSubtree {
+        private final List<CodebookStructureNode> nodes = new ArrayList<>();
+        // the referenced codebooks that were checked against the double-detection list while building the subtree
+        private final Set<String> checkedNames = new HashSet<>();
+        // size of the double-detection list before the subtree's own codebook was added to it
+        private final int branchDepth;
+        private boolean reusable = true;
+
+        private ReferencedSubtree(int branchDepth){
+            this.branchDepth = branchDepth;
+        }
+
+        /**
+         * returns whether the subtree is the same as it would be when it's built in the current branch
+         * @param refCodebookName the referenced codebook the subtree is built for
+         * @param visitedNames    the referenced codebooks visited in the current branch
+         * @return true/false
+         */
+        private boolean isReusable(String refCodebookName, Collection<String> visitedNames){
+            return reusable && checkedNames.stream().noneMatch(t->!t.equals(refCodebookName) && visitedNames.contains(t));
+        }
+    }
+
     /**
      * Helper class for handling includes of other codebooks
      */
@@ -14,6 +14,8 @@ public class CodebookOpenEHRMetaData extends CodebookMetaDataDefault {
     private static final Logger logger = LogManager.getLogger(CodebookMetaDataDefault.class.getName());
     private static final String dateFormat = "yyyy-MM-dd";
 
+    private ADLHeader header;
+
     public CodebookOpenEHRMetaData(String codebookName){
         super(codebookName, dateFormat);
         readOpenEHR();
@@ -21,10 +23,11 @@ public class CodebookOpenEHRMetaData extends CodebookMetaDataDefault {
     }
 
     /**
-     * parse the openEHR codebook
+     * scan the openEHR codebook for its metadata
+     * the codebook itself is parsed once its items are needed
      */
     private void readOpenEHR(){
-        OpenEHRCodebookRepository.addCodebook(codebookName);
+        header = OpenEHRCodebookRepository.getHeader(codebookName);
     }
 
     /**
@@ -33,8 +36,8 @@ public class CodebookOpenEHRMetaData extends CodebookMetaDataDefault {
     private void setMetaData(){
         String id = GlobalSettings.getCodebookPrefix(codebookName);
         String name = codebookName;
-        List<String> languages = OpenEHRCodebookRepository.getLanguages(codebookName);
-        String version = OpenEHRCodebookRepository.getVersion(codebookName);
+        List<String> languages = header.getLanguages();
+        String version = header.getReleaseVersion();
         // there does not seem to be a date
         String date = "";
         DatasetMetaData datasetMetaData = new DatasetMetaData(id, version, name, date, languages);
@@ -6,56 +6,125 @@ import com.nedap.archie.aom.*;
 import com.nedap.archie.aom.terminology.ArchetypeTerm;
 import com.nedap.archie.aom.terminology.ArchetypeTerminology;
 import com.nedap.archie.aom.terminology.ValueSet;
+import com.nedap.archie.archetypevalidator.ArchetypeValidator;
 import com.nedap.archie.archetypevalidator.ValidationResult;
 import com.nedap.archie.flattener.InMemoryFullArchetypeRepository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openehr.referencemodels.BuiltinReferenceModels;
 
+import icrfgenerator.codebook.SourceFile;
 import icrfgenerator.settings.GlobalSettings;
+import icrfgenerator.utils.CacheFileUtils;
+import icrfgenerator.utils.CacheManifest;
+import icrfgenerator.utils.HttpStatusException;
 import icrfgenerator.utils.RestCalls;
 
 import java.io.*;
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Archetype repository and helper functions to retrieve data from these archetypes
  */
 public class OpenEHRCodebookRepository {
     private static final Logger logger = LogManager.getLogger(OpenEHRCodebookRepository.class.getName());
-    private static final InMemoryFullArchetypeRepository repository = new InMemoryFullArchetypeRepository();
-    private static final HashMap<String, Archetype> nameToFlattenedArchetype = new HashMap<>();
+    private static InMemoryFullArchetypeRepository repository = new InMemoryFullArchetypeRepository();
+    // codebooks may be loaded by several threads; the repository is only modified while holding the class lock
+    private static final Map<String, Archetype> nameToFlattenedArchetype = new ConcurrentHashMap<>();
+    private static final Map<String, SourceFile> nameToSourceFile = new ConcurrentHashMap<>();
+    private static final Map<String, ArchetypeTermLookup> nameToTermLookup = new ConcurrentHashMap<>();
+    // specialised codebooks which were added before the codebook they specialise; validated again once it is added
+    private static final Map<String, Archetype> nameToUnresolvedArchetype = new HashMap<>();
+    // number of codebooks being built; the parsed codebooks are only kept while there are any
+    private static int activeBuilds = 0;
+
+    /**
+     * signal that a codebook is being built, which keeps the parsed codebooks in memory until it is done
+     */
+    static synchronized void startBuild(){
+        activeBuilds++;
+    }
+
+    /**
+     * signal that a codebook has been built
+     * the citeable identifiers found while building it are stored. Once no codebook is being built anymore, the parsed and flattened codebooks are released. The built codebooks
+     * don't need them and the files are still in the cache if a codebook has to be built again.
+     */
+    static synchronized void finishBuild(){
+        CiteableIdentifierCache.getInstance().save();
+        activeBuilds--;
+        if(activeBuilds==0){
+            for(String codebookName:nameToUnresolvedArchetype.keySet()){
+                logger.error("There was an issue with the codebook validation; the codebook it specialises is missing. CodebookName = "+codebookName);
+            }
+            nameToUnresolvedArchetype.clear();
+            repository = new InMemoryFullArchetypeRepository();
+            nameToFlattenedArchetype.clear();
+            nameToTermLookup.clear();
+            nameToSourceFile.clear();
+            logger.debug("Released the parsed openEHR codebooks");
+        }
+    }
 
     /**
      * attempts to add a new codebook to the repository if it is not yet available there
+     * the file is retrieved and parsed before taking the repository's lock, so several codebooks can be loaded at the same time
      * @param codebookName name of the codebook to add
      */
     static void addCodebook(String codebookName){
         if(!nameToFlattenedArchetype.containsKey(codebookName)){
-            try {
-                parseFile(codebookName, getFile(codebookName));
-            } catch (IOException | ADLParseException e) {
-                e.printStackTrace();
+            addFile(codebookName, getCodebookSourceFile(codebookName));
+        }
+    }
+
+    /**
+     * returns the details of a codebook which are needed for its metadata
+     * these are scanned from the codebook file, so the codebook doesn't have to be parsed and compiled until its
+     * items are needed. If the file can't be scanned, it is parsed instead, without adding it to the repository.
+     * @param codebookName name of the codebook
+     * @return the release version and languages of the codebook
+     */
+    static ADLHeader getHeader(String codebookName){
+        File file = getCodebookSourceFile(codebookName).retrieve(codebookName);
+        try {
+            ADLHeader header = ADLHeader.scan(file);
+            if(header!=null){
+                if(header.getReleaseVersion()!=null){
+                    CacheManifest.getInstance().setVersion(file, header.getReleaseVersion());
+                }
+                return header;
+            }
+            logger.warn("Unable to scan the header of codebook "+codebookName+"; parsing it instead");
+        } catch (IOException e) {
+            logger.warn("Unable to scan the header of codebook "+codebookName+": "+e.getMessage());
+        }
+        try {
+            Archetype archetype = parseFile(file);
+            if(archetype.getArchetypeId().getReleaseVersion()!=null){
+                CacheManifest.getInstance().setVersion(file, archetype.getArchetypeId().getReleaseVersion());
             }
+            return ADLHeader.fromArchetype(archetype);
+        } catch (IOException | ADLParseException e) {
+            throw new RuntimeException("Unable to read codebook "+codebookName+": "+e.getMessage());
         }
     }
 
     /**
-     * Get the codebook file
+     * Get the codebook file and where to retrieve it
      * e.g. <a href="https://ckm.openehr.org/ckm/retrieveArchetype?cid-archetype=1013.1.1631&format=ADL2">...</a>
      * @param codebookName name of the codebook we're looking for
-     * @return codebook file
+     * @return codebook source file
      */
-    private static File getFile(String codebookName){
+    private static SourceFile getCodebookSourceFile(String codebookName){
 //        String uri = GlobalSettings.getServer(codebookName)+"retrieveArchetype?cid-archetype="+GlobalSettings.getCodebookPrefix(codebookName)+"&format=ADL2";
         String uri = getCodebookURI(GlobalSettings.getServer(codebookName), GlobalSettings.getCodebookPrefix(codebookName));
         String dir = GlobalSettings.getCacheDir()+ File.separator;
         String fileName = dir+codebookName+".adls";
-        return RestCalls.getFile(uri, fileName);
+        return new SourceFile(fileName, uri, null);
     }
 
     /**
@@ -66,8 +135,21 @@ public class OpenEHRCodebookRepository {
      */
     static void addRefCodebook(String parentCodebook, String refCodebookName, String refCodebookId){
         if(!nameToFlattenedArchetype.containsKey(refCodebookName)){
+            addFile(refCodebookName, getRefSourceFile(parentCodebook, refCodebookName, refCodebookId));
+        }
+    }
+
+    /**
+     * parses a codebook file and adds it to the repository, unless another thread added it in the meantime
+     * parsing doesn't touch the repository, so several codebooks can be parsed at the same time
+     * @param codebookName name of the codebook
+     * @param sourceFile   the codebook file and where to retrieve it
+     */
+    private static void addFile(String codebookName, SourceFile sourceFile){
+        if(!nameToFlattenedArchetype.containsKey(codebookName)){
             try {
-                parseFile(refCodebookName, getRefFile(parentCodebook, refCodebookName, refCodebookId));
+                File file = sourceFile.retrieve(codebookName);
+                addArchetype(codebookName, sourceFile, file, parseFile(file));
             } catch (IOException | ADLParseException e) {
                 e.printStackTrace();
             }
@@ -75,17 +157,17 @@ public class OpenEHRCodebookRepository {
     }
 
     /**
-     * Get the codebook file for a reference codebook
+     * Get the codebook file for a reference codebook and where to retrieve it
      * @param parentCodebook  the top parent, which can tell us the server to use
      * @param refCodebookName name of the codebook we're looking for
      * @param refCodebookId   id of the codebook we're looking for
-     * @return codebook file
+     * @return codebook source file
      */
-    private static File getRefFile(String parentCodebook, String refCodebookName, String refCodebookId){
+    private static SourceFile getRefSourceFile(String parentCodebook, String refCodebookName, String refCodebookId){
         String uri = getCodebookURI(GlobalSettings.getServer(parentCodebook), refCodebookId);
         String dir = GlobalSettings.getCacheDir()+ File.separator;
         String fileName = dir+refCodebookName+".adls";
-        return RestCalls.getFile(uri, fileName);
+        return new SourceFile(fileName, uri, null);
     }
 
 
@@ -101,51 +183,161 @@ public class OpenEHRCodebookRepository {
 
     /**
      * Parse a codebook
-     * @param codebookName name of the codebook
-     * @param file         the file to parse
+     * @param file the file to parse
+     * @return the archetype
      * @throws IOException issue with the file
      * @throws ADLParseException issue with the file
      */
-    private static void parseFile(String codebookName, File file) throws IOException, ADLParseException {
+    private static Archetype parseFile(File file) throws IOException, ADLParseException {
         ADLParser parser = new ADLParser();
-        try (InputStream stream = new FileInputStream(file)) {
-            Archetype archetype = parser.parse(stream);
+        try (InputStream stream = CacheFileUtils.openInputStream(file)) {
+            return parser.parse(stream);
+        }
+    }
+
+    /**
+     * adds a parsed codebook to the repository
+     * @param codebookName name of the codebook
+     * @param sourceFile   the codebook file and where it was retrieved
+     * @param file         the file the codebook was parsed from
+     * @param archetype    the parsed codebook
+     */
+    private static synchronized void addArchetype(String codebookName, SourceFile sourceFile, File file, Archetype archetype){
+        if(nameToFlattenedArchetype.containsKey(codebookName)){
+            return;
+        }
+        nameToSourceFile.put(codebookName, sourceFile);
+        repository.addArchetype(archetype);
+        validateArchetype(codebookName, archetype);
+        // the release version is only known once the file is parsed; record it for the cache
+        if(archetype.getArchetypeId().getReleaseVersion()!=null){
+            CacheManifest.getInstance().setVersion(file, archetype.getArchetypeId().getReleaseVersion());
+        }
+    }
+
+    /**
+     * validates and flattens a codebook that was added to the repository
+     * only the new archetype (and the archetypes it specialises) has to be validated and flattened; the archetypes
+     * that were added earlier keep their results, except for the specialised archetypes that were waiting for this one
+     * @param codebookName name of the codebook
+     * @param archetype    the parsed codebook
+     */
+    private static void validateArchetype(String codebookName, Archetype archetype){
+        ValidationResult result = ValidatorHolder.validator.validate(archetype, repository);
+        if(!result.passes()){
+            String parentArchetypeId = archetype.getParentArchetypeId();
+            if(parentArchetypeId!=null && findArchetype(parentArchetypeId)==null){
+                logger.info("Validating codebook "+codebookName+" once the codebook it specialises, "+parentArchetypeId+", is added");
+                nameToUnresolvedArchetype.put(codebookName, archetype);
+            }
+            else {
+                logger.error("There was an issue with the codebook validation. CodebookName = "+codebookName);
+            }
+            return;
+        }
+        nameToTermLookup.put(codebookName, new ArchetypeTermLookup(result.getFlattened()));
+        nameToFlattenedArchetype.put(codebookName, result.getFlattened());
+
+        List<String> specialisations = new ArrayList<>();
+        for(Map.Entry<String, Archetype> entry:nameToUnresolvedArchetype.entrySet()){
+            if(isIdOf(archetype, entry.getValue().getParentArchetypeId())){
+                specialisations.add(entry.getKey());
+            }
+        }
+        for(String specialisation:specialisations){
+            validateArchetype(specialisation, nameToUnresolvedArchetype.remove(specialisation));
+        }
+    }
+
+    /**
+     * finds an archetype in the repository
+     * @param archetypeId the id of the archetype, which may leave out (part of) the version
+     * @return the archetype or null if the repository doesn't contain it
+     */
+    private static Archetype findArchetype(String archetypeId){
+        for(Archetype archetype:repository.getAllArchetypes()){
+            if(isIdOf(archetype, archetypeId)){
+                return archetype;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * returns whether an id refers to an archetype
+     * e.g. openEHR-EHR-OBSERVATION.blood_pressure.v2 refers to openEHR-EHR-OBSERVATION.blood_pressure.v2.1.0
+     * @param archetype   the archetype
+     * @param archetypeId the id, which may leave out (part of) the version
+     * @return true/false
+     */
+    private static boolean isIdOf(Archetype archetype, String archetypeId){
+        String fullId = archetype.getArchetypeId().getFullId();
+        return fullId.equals(archetypeId) || fullId.startsWith(archetypeId+".");
+    }
 
-            repository.addArchetype(archetype);
+    /**
+     * holds the validator, which is only created when the first codebook is parsed, as preparing the
+     * reference model metamodels takes a while
+     */
+    private static class ValidatorHolder {
+        private static final ArchetypeValidator validator = createValidator();
 
+        /**
+         * creates a validator using the builtin reference model metamodels
+         * @return the validator
+         */
+        private static ArchetypeValidator createValidator(){
             // the getmetamodels give 2 token recognition errors, apparently cause by antlr
             // maybe intercept what happens (pipedoutpustream?)
             // or we can temporarily write err to null, but that's kinda dubious.
             PrintStream printStream = System.err;
             System.setErr(System.out);
-            repository.compile(BuiltinReferenceModels.getMetaModels());
-            System.setErr(printStream);
-
-            for(ValidationResult result:repository.getAllValidationResults()) {
-                if(!result.passes()){
-                    logger.error("There was an issue with the codebook validation. CodebookName = "+codebookName);
-                }
-                else{
-                    nameToFlattenedArchetype.put(codebookName, repository.getFlattenedArchetype(archetype.getArchetypeId().getFullId()));
-                }
+            try {
+                return new ArchetypeValidator(BuiltinReferenceModels.getMetaModels());
+            } finally {
+                System.setErr(printStream);
             }
         }
     }
 
+    /**
+     * returns the file a codebook was parsed from
+     * @param codebookName name of the codebook
+     * @return the file or null if the codebook hasn't been parsed
+     */
+    static SourceFile getSourceFile(String codebookName){
+        return nameToSourceFile.get(codebookName);
+    }
+
     /**
      * attempt to find the id for a codebookname
+     * the ids that were found, as well as the codebooks that don't exist, are remembered
      * @param parentCodebook  the top parent, which can tell us the server to use
      * @param refCodebookName name of the codebook we're looking for
-     * @return the identifier
+     * @return the identifier or an empty String if it isn't found
      */
     static String getRefCodebookId(String parentCodebook, String refCodebookName){
         String refCodebookId;
         String cidUri = GlobalSettings.getServer(parentCodebook)+"rest/v1/archetypes/citeable-identifier/"+refCodebookName;
+        CiteableIdentifierCache citeableIdentifierCache = CiteableIdentifierCache.getInstance();
+        refCodebookId = citeableIdentifierCache.get(cidUri, false);
+        if(refCodebookId!=null){
+            return refCodebookId;
+        }
         try {
             refCodebookId = RestCalls.generalCall(cidUri);
-        } catch (IOException e) {
+        } catch (HttpStatusException e) {
+            // the codebook doesn't exist
+            if(e.getStatusCode()==404){
+                citeableIdentifierCache.put(cidUri, "");
+            }
             return "";
+        } catch (IOException e) {
+            // e.g. we're offline; an identifier we found before is still better than nothing
+            refCodebookId = citeableIdentifierCache.get(cidUri, true);
+            return refCodebookId==null ? "" : refCodebookId;
         }
+        citeableIdentifierCache.put(cidUri, refCodebookId);
         return refCodebookId;
     }
 
@@ -172,8 +364,7 @@ public class OpenEHRCodebookRepository {
      * @return description in the language
      */
     static String getItemDescription(String codebook, String code, String language){
-        ArchetypeTerminology archetypeTerminology = getArchetype(codebook).getTerminology();
-        ArchetypeTerm archetypeTerm = archetypeTerminology.getTermDefinition(language, code);
+        ArchetypeTerm archetypeTerm = getTerm(codebook, code, language);
         if (archetypeTerm==null || archetypeTerm.getDescription() ==null){
             return "NO_DESCRIPTION";
         }
@@ -202,8 +393,7 @@ public class OpenEHRCodebookRepository {
      * @return text in the language
      */
     static String getItemText(String codebook, String code, String language){
-        ArchetypeTerminology archetypeTerminology = getArchetype(codebook).getTerminology();
-        ArchetypeTerm archetypeTerm = archetypeTerminology.getTermDefinition(language, code);
+        ArchetypeTerm archetypeTerm = getTerm(codebook, code, language);
         if (archetypeTerm==null || archetypeTerm.getText() ==null){
             return "NO_TEXT";
         }
@@ -211,15 +401,34 @@ public class OpenEHRCodebookRepository {
     }
 
     /**
-     * returns and item's term bindings, which is e.g.
+     * returns the term of a code, using the codebook's lookup table
+     * the archetype's terminology is only searched for codes that aren't in the table, e.g. specialised codes
+     * @param codebook codebook
+     * @param code     code for which to obtain the term
+     * @param language language of the term
+     * @return the term or null if there is none
+     */
+    private static ArchetypeTerm getTerm(String codebook, String code, String language){
+        ArchetypeTermLookup termLookup = nameToTermLookup.get(codebook);
+        ArchetypeTerm archetypeTerm = termLookup==null ? null : termLookup.getTerm(code, language);
+        if(archetypeTerm==null){
+            ArchetypeTerminology archetypeTerminology = getArchetype(codebook).getTerminology();
+            archetypeTerm = archetypeTerminology.getTermDefinition(language, code);
+        }
+        return archetypeTerm;
+    }
+
+    /**
+     * returns the codesystem and the code in this system a code is bound to via term_bindings, e.g.
      * openehr -> at9000 --> openehr.org/id/125
-     *            at9056 --> openehr.org/id/146
-     * snomed-ct -> etc.
+     * returns openehr and 125 for at9000
      * @param codebook codebook
-     * @return map with maps with the bindings
+     * @param code     the code which we need to check for bindings
+     * @return array with codesystem and the code of this term in the system or null if the code isn't bound
      */
-    static Map<String, Map<String, URI>> getTermBindings(String codebook){
-         return getArchetype(codebook).getTerminology().getTermBindings();
+    static String [] getBinding(String codebook, String code){
+        ArchetypeTermLookup termLookup = nameToTermLookup.get(codebook);
+        return termLookup==null ? null : termLookup.getBinding(code);
     }
 
     /**
@@ -231,25 +440,6 @@ public class OpenEHRCodebookRepository {
         return cObject.getNodeId();
     }
 
-    /**
-     * retuns the codebook's languages
-     * @param codebookName name of the codebook
-     * @return the codebook's languages
-     */
-    static List<String> getLanguages(String codebookName){
-        ArchetypeTerminology archetypeTerminology = getArchetype(codebookName).getTerminology();
-        return new ArrayList<>(archetypeTerminology.getTermDefinitions().keySet());
-    }
-
-    /**
-     * returns the codebook's version
-     * @param codebookName name of the codebook
-     * @return version of the codebook
-     */
-    static String getVersion(String codebookName){
-        return getArchetype(codebookName).getArchetypeId().getReleaseVersion();
-    }
-
     /**
      * returns the codebook's terminology valueset
      * @param codebookName name of the codebook
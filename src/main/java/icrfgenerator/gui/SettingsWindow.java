@@ -41,11 +41,12 @@ import java.util.stream.Collectors;
  */
 class SettingsWindow extends Dialog{
     private static final double prefWidth = 475;
-    private static final double prefHeight = 200;
+    private static final double prefHeight = 250;
 
-    private Label setLanguageLabel, readTimeoutLabel;
+    private Label setLanguageLabel, readTimeoutLabel, cacheMaxAgeLabel, cacheMaxSizeLabel, cacheCompressedLabel;
     private ComboBox <IdLanguage> languageComboBox;
-    private TextField readTimeoutTextField;
+    private TextField readTimeoutTextField, cacheMaxAgeTextField, cacheMaxSizeTextField;
+    private CheckBox cacheCompressedCheckBox;
 
     private SettingsWindow (){
         createDialog();
@@ -87,6 +88,9 @@ class SettingsWindow extends Dialog{
         // update the textual representation of the languages in the combobox
         languageComboBox.getItems().forEach(t->t.updateLanguage());
         readTimeoutLabel.setText(I18N.getLanguageText(readTimeoutLabel.getId()));
+        cacheMaxAgeLabel.setText(I18N.getLanguageText(cacheMaxAgeLabel.getId()));
+        cacheMaxSizeLabel.setText(I18N.getLanguageText(cacheMaxSizeLabel.getId()));
+        cacheCompressedLabel.setText(I18N.getLanguageText(cacheCompressedLabel.getId()));
     }
 
     /**
@@ -137,8 +141,38 @@ class SettingsWindow extends Dialog{
             GlobalSettings.setCodebookReadTimeout(Integer.parseInt(newValue));
         });
 
+        // cache age fields
+        cacheMaxAgeLabel = new Label("cache age in days");
+        cacheMaxAgeLabel.setPrefWidth(200);
+        cacheMaxAgeLabel.setId("cacheMaxAge");
 
-        vBox.getChildren().addAll(getHBox(setLanguageLabel, languageComboBox), getHBox(readTimeoutLabel, readTimeoutTextField));
+        cacheMaxAgeTextField = new IntField((int) (GlobalSettings.getCacheMaxAge()/(24*60*60*1000L)));
+        cacheMaxAgeTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue.equalsIgnoreCase("")) newValue = "0";
+            GlobalSettings.setCacheMaxAge(Integer.parseInt(newValue));
+        });
+
+        // cache size fields
+        cacheMaxSizeLabel = new Label("cache size in MB");
+        cacheMaxSizeLabel.setPrefWidth(200);
+        cacheMaxSizeLabel.setId("cacheMaxSize");
+
+        cacheMaxSizeTextField = new IntField((int) (GlobalSettings.getCacheMaxSize()/(1024*1024L)));
+        cacheMaxSizeTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue.equalsIgnoreCase("")) newValue = "0";
+            GlobalSettings.setCacheMaxSize(Integer.parseInt(newValue));
+        });
+
+        // cache compression fields
+        cacheCompressedLabel = new Label("compress cached codebooks");
+        cacheCompressedLabel.setPrefWidth(200);
+        cacheCompressedLabel.setId("cacheCompressed");
+
+        cacheCompressedCheckBox = new CheckBox();
+        cacheCompressedCheckBox.setSelected(GlobalSettings.isCacheCompressed());
+        cacheCompressedCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> GlobalSettings.setCacheCompressed(newValue));
+
+        vBox.getChildren().addAll(getHBox(setLanguageLabel, languageComboBox), getHBox(readTimeoutLabel, readTimeoutTextField), getHBox(cacheMaxAgeLabel, cacheMaxAgeTextField), getHBox(cacheMaxSizeLabel, cacheMaxSizeTextField), getHBox(cacheCompressedLabel, cacheCompressedCheckBox));
         return vBox;
     }
 
@@ -72,6 +72,7 @@ public class SelectDatasetsPage extends WizardPane {
 
     /**
      * create a new tab for a codebook
+     * if the codebook's metadata couldn't be retrieved, the tab shows an error message instead of the versions
      * @param codebook codebook name
      * @return new tab for codebook
      */
@@ -80,6 +81,11 @@ public class SelectDatasetsPage extends WizardPane {
         tab.setId(codebook);
         tab.setClosable(false);
 
+        if(!codebookManager.hasCodebookMetaData(codebook)){
+            tab.setContent(GUIUtils.createErrorPane(I18N.getLanguageText("pageSelectDatasetsErrorPane")));
+            return tab;
+        }
+
         GridPane gridPane = createVersionLanguagesGridPane(codebook);
         gridPane.setPrefWidth(580);
         tab.setContent(new ScrollPane(gridPane));
@@ -88,17 +94,25 @@ public class SelectDatasetsPage extends WizardPane {
 
     /**
      * starts codebook loading in the background to prevent an unresponsive UI
+     * the page is shown as long as the metadata of at least one codebook could be retrieved
      */
     private void startLoadingTask(){
-        // the background task
-        Task<Void> task = new Task<>() {
+        // the background task, which returns the codebooks for which the metadata couldn't be retrieved
+        Task<List<String>> task = new Task<>() {
             @Override
-            protected Void call() {
-                codebookManager.updateCodebooksMetadata();
-                return null;
+            protected List<String> call() {
+                return codebookManager.updateCodebooksMetadata((loaded, total) -> updateMessage(loaded+" / "+total));
             }
         };
-        task.setOnSucceeded(event -> setSelectCodebookVersionsContent());
+        setLoadingContent(task);
+        task.setOnSucceeded(event -> {
+            if(task.getValue().containsAll(runSettings.getSelectedCodebooks())){
+                setFailedLoadingContent();
+            }
+            else {
+                setSelectCodebookVersionsContent();
+            }
+        });
         task.setOnFailed(event -> setFailedLoadingContent());
         new Thread(task).start();
     }
@@ -148,10 +162,11 @@ public class SelectDatasetsPage extends WizardPane {
 
     /**
      * create some loading awareness for the user
+     * @param task the loading task, of which the message shows the progress
      */
-    private void setLoadingContent(){
+    private void setLoadingContent(Task<List<String>> task){
         this.setHeaderText(I18N.getLanguageText("pageSelectDatasetsLoadingPageTitle"));
-        this.setContent(GUIUtils.createLoadingPane(I18N.getLanguageText("pageSelectDatasetsLoadingTitle")));
+        this.setContent(GUIUtils.createLoadingPane(I18N.getLanguageText("pageSelectDatasetsLoadingTitle"), task.messageProperty()));
     }
 
     /**
@@ -160,7 +175,6 @@ public class SelectDatasetsPage extends WizardPane {
     private void buildPage(){
         System.out.println("build page 2");
         hideButtons();
-        setLoadingContent();
         startLoadingTask();
     }
 
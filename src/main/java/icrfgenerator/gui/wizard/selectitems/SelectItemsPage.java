@@ -119,10 +119,11 @@ public class SelectItemsPage extends WizardPane {
             @Override
             protected Void call() {
                 runSettings.determineLanguageBasedIdentifiers();
-                codebookManager.updateCodebookItems();
+                codebookManager.updateCodebookItems((loaded, total) -> updateMessage(loaded+" / "+total));
                 return null;
             }
         };
+        setLoadingContent(task);
         task.setOnSucceeded(event -> setSelectItemsContent());
         task.setOnFailed(event -> setFailedLoadingContent());
         new Thread(task).start();
@@ -184,10 +185,11 @@ public class SelectItemsPage extends WizardPane {
 
     /**
      * create some loading awareness for the user
+     * @param task the loading task, whose message shows how many codebooks have been loaded
      */
-    private void setLoadingContent(){
+    private void setLoadingContent(Task<Void> task){
         this.setHeaderText(I18N.getLanguageText("pageSelectItemsLoadingPageTitle"));
-        this.setContent(GUIUtils.createLoadingPane(I18N.getLanguageText("pageSelectItemsLoadingTitle")));
+        this.setContent(GUIUtils.createLoadingPane(I18N.getLanguageText("pageSelectItemsLoadingTitle"), task.messageProperty()));
     }
 
     /**
@@ -196,7 +198,6 @@ public class SelectItemsPage extends WizardPane {
     private void buildPage(){
         System.out.println("build page 3");
         hideButtons();
-        setLoadingContent();
         startLoadingTask();
     }
 
@@ -46,6 +46,21 @@ public class GlobalSettings {
     private static final int codebookConnectionTimeout = 15000;
     private static int codebookReadTimeout = 120000;
 
+    // age (ms) after which a cached codebook file is checked with the server; 7 days by default
+    private static long cacheMaxAge = 7*24*60*60*1000L;
+
+    // age (ms) after which the cached list of datasets of a codebook is refreshed; 1 day
+    private static final long metaDataMaxAge = 24*60*60*1000L;
+
+    // maximum size (bytes) of the codebook files in the cache; 1 GB by default, 0 means there is no maximum
+    private static long cacheMaxSize = 1024*1024*1024L;
+
+    // whether downloaded codebook files are stored gzip compressed in the cache
+    private static boolean cacheCompressed = false;
+
+    // maximum number of codebooks that are downloaded and parsed at the same time
+    private static final int codebookLoadingThreads = 4;
+
     private static final Map<String, String> serverToOnlineURL = new HashMap<>();
 
     /**
@@ -277,4 +292,69 @@ public class GlobalSettings {
     public static void setCodebookReadTimeout(int codebookReadTimeout){
         GlobalSettings.codebookReadTimeout = codebookReadTimeout*1000;
     }
+
+    /**
+     * returns the age after which a cached file has to be checked with the server
+     * @return the age after which a cached file has to be checked with the server (ms)
+     */
+    public static long getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * sets the age after which a cached file has to be checked with the server
+     * @param cacheMaxAge value (days), which is converted to ms
+     */
+    public static void setCacheMaxAge(int cacheMaxAge){
+        GlobalSettings.cacheMaxAge = cacheMaxAge*24*60*60*1000L;
+    }
+
+    /**
+     * returns the age after which the cached metadata of a codebook is refreshed
+     * @return the age after which the cached metadata of a codebook is refreshed (ms)
+     */
+    public static long getMetaDataMaxAge() {
+        return metaDataMaxAge;
+    }
+
+    /**
+     * returns the maximum size of the codebook files in the cache
+     * @return the maximum size (bytes), or 0 if there is no maximum
+     */
+    public static long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    /**
+     * sets the maximum size of the codebook files in the cache
+     * @param cacheMaxSize value (MB), which is converted to bytes; 0 means there is no maximum
+     */
+    public static void setCacheMaxSize(int cacheMaxSize){
+        GlobalSettings.cacheMaxSize = cacheMaxSize*1024*1024L;
+    }
+
+    /**
+     * returns whether downloaded codebook files are stored compressed in the cache
+     * @return true/false
+     */
+    public static boolean isCacheCompressed() {
+        return cacheCompressed;
+    }
+
+    /**
+     * sets whether downloaded codebook files are stored compressed in the cache
+     * files that are already in the cache remain readable either way
+     * @param cacheCompressed true/false
+     */
+    public static void setCacheCompressed(boolean cacheCompressed){
+        GlobalSettings.cacheCompressed = cacheCompressed;
+    }
+
+    /**
+     * returns the maximum number of codebooks that are loaded concurrently
+     * @return the maximum number of codebooks that are loaded concurrently
+     */
+    public static int getCodebookLoadingThreads() {
+        return codebookLoadingThreads;
+    }
 }
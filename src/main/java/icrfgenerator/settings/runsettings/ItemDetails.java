@@ -20,9 +20,12 @@
 package icrfgenerator.settings.runsettings;
 
 import icrfgenerator.types.OperatorType;
+import icrfgenerator.utils.CodeOrdering;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * details of a selected item
@@ -31,7 +34,8 @@ import java.util.List;
 public class ItemDetails{
     private final String key;
     private final String itemId;
-    private final List<String> codesList = new ArrayList<>();
+    // kept in the order in which the codes are shown, so the codes never have to be sorted when they are read
+    private final SortedSet<String> codesSet = new TreeSet<>(CodeOrdering.getComparator());
 
     // items which most EDCs will want to use
     private String dataType;
@@ -58,9 +62,7 @@ public class ItemDetails{
      * @param code code
      */
     void addSelectedTerminologyCode(String code){
-        if(!codesList.contains(code)){
-            codesList.add(code);
-        }
+        codesSet.add(code);
     }
 
     /**
@@ -68,22 +70,22 @@ public class ItemDetails{
      * @param code code
      */
     void removeSelectedTerminologyCode(String code){
-        codesList.remove(code);
+        codesSet.remove(code);
     }
 
     /**
      * clear all selected codes
      */
     void removeSelectedTerminologyCodes(){
-        codesList.clear();
+        codesSet.clear();
     }
 
     /**
-     * get a list with the selected terminology codes
+     * get a list with the selected terminology codes, sorted by code
      * @return List with the selected terminology codes
      */
     List<String> getSelectedTerminologyCodes(){
-        return codesList;
+        return new ArrayList<>(codesSet);
     }
 
     /**
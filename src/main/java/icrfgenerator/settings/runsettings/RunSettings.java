@@ -276,7 +276,7 @@ public abstract class RunSettings{
         // get a list of the keys
         List<String> keys = getMainSimpleLanguageIds();
         // filter on whether the key exists in the Map; if it does, check whether any item is selected
-        return keys.stream().filter(t->selectedItemsContainerForCodebookDatasetLanguageMap.containsKey(t)).anyMatch(t->selectedItemsContainerForCodebookDatasetLanguageMap.get(t).getSelectedItemsList().size()>0);
+        return keys.stream().filter(t->selectedItemsContainerForCodebookDatasetLanguageMap.containsKey(t)).anyMatch(t->selectedItemsContainerForCodebookDatasetLanguageMap.get(t).getNrSelectedItems()>0);
     }
 
     /**
@@ -571,8 +571,7 @@ public abstract class RunSettings{
             if (selectedItemsContainerForCodebookDatasetLanguageMap.containsKey(key)) {
                 nrCodebookdatasetIdLanguages++;
                 SelectedItemsContainer selectedItemsContainerForCodebookdatasetIdLanguage = selectedItemsContainerForCodebookDatasetLanguageMap.get(key);
-                List<String> selectedItemIds = selectedItemsContainerForCodebookdatasetIdLanguage.getSelectedItemsList();
-                nrItemsSelected += selectedItemIds.size();
+                nrItemsSelected += selectedItemsContainerForCodebookdatasetIdLanguage.getNrSelectedItems();
             }
         }
 
@@ -28,7 +28,8 @@ import java.util.*;
  * all EDCs are expected to create an extension of this class to allow for their specifics
  */
 public abstract class SelectedItemsContainer {
-    private final List<String> selectedItemsList = new ArrayList<>();
+    // the selected items, in the order in which they were selected
+    private final Set<String> selectedItems = new LinkedHashSet<>();
     private final String key;
 
     protected Map<String, ItemDetails> itemDetailsMap = new HashMap<>();
@@ -54,18 +55,18 @@ public abstract class SelectedItemsContainer {
      * @return true/false
      */
     boolean isItemSelected(String itemId){
-        return selectedItemsList.contains(itemId);
+        return selectedItems.contains(itemId);
     }
 
     /**
-     * returns the selected codes + values for an item
+     * returns the selected codes + values for an item, sorted by code
      * @param itemId item id
      * @return set with codes + values
      */
     List<String> getTerminologyCodes(String itemId){
-        if(itemDetailsMap.containsKey(itemId)) {
-            itemDetailsMap.get(itemId).getSelectedTerminologyCodes().sort(new SortByCode());
-            return itemDetailsMap.get(itemId).getSelectedTerminologyCodes();
+        ItemDetails itemDetails = itemDetailsMap.get(itemId);
+        if(itemDetails!=null) {
+            return itemDetails.getSelectedTerminologyCodes();
         }
         return new ArrayList<>();
     }
@@ -101,9 +102,7 @@ public abstract class SelectedItemsContainer {
      * @param itemId id of item
      */
     void addItem(String itemId){
-        if(!selectedItemsList.contains(itemId)){
-            selectedItemsList.add(itemId);
-        }
+        selectedItems.add(itemId);
         if(!itemDetailsMap.containsKey(itemId)){
             addItemEDC(key, itemId);
         }
@@ -114,15 +113,23 @@ public abstract class SelectedItemsContainer {
      * @param itemId id of item
      */
     void removeItem(String itemId){
-        selectedItemsList.remove(itemId);
+        selectedItems.remove(itemId);
     }
 
     /**
-     * returns list of selected items
+     * returns list of selected items, in the order in which they were selected
      * @return list of selected items
      */
     List<String> getSelectedItemsList(){
-        return selectedItemsList;
+        return new ArrayList<>(selectedItems);
+    }
+
+    /**
+     * returns the number of selected items
+     * @return the number of selected items
+     */
+    int getNrSelectedItems(){
+        return selectedItems.size();
     }
 
     /**
@@ -251,22 +258,4 @@ public abstract class SelectedItemsContainer {
         return itemDetailsMap.get(itemId).getItemUnitsValue();
     }
 
-    /**
-     * sort the selected terminology codes
-     */
-    static class SortByCode implements Comparator<String> {
-        @Override
-        public int compare(String code1, String code2) {
-            try{
-                int code1Int = Integer.parseInt(code1);
-                int code2Int = Integer.parseInt(code2);
-                if(code1Int>code2Int) return 1;
-                else if(code1Int<code2Int) return -1;
-                return 0;
-            }catch (Exception e) {
-                return code1.compareToIgnoreCase(code2);
-            }
-        }
-    }
-
-}
\ No newline at end of file
+}
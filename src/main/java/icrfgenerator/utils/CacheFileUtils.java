@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 VUmc/KWF TraIT2Health-RI
+ *
+ * This file is part of iCRFGenerator
+ *
+ * iCRFGenerator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * iCRFGenerator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with iCRFGenerator. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package icrfgenerator.utils;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helper functions for reading and writing the codebook files in the cache directory
+ * files in the cache may be stored gzip compressed; compressed files are recognised by their content rather than
+ * their name, so changing the compression setting doesn't invalidate the files that are already cached
+ */
+public class CacheFileUtils {
+    private static final int bufferSize = 65536;
+
+    /**
+     * opens a cached file for reading, decompressing it while reading if it is compressed
+     * the caller is responsible for closing the stream
+     * @param file the cached file
+     * @return stream with the (uncompressed) content of the file
+     * @throws IOException issue opening the file
+     */
+    public static InputStream openInputStream(File file) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), bufferSize);
+        try {
+            if(isCompressed(inputStream)){
+                return new BufferedInputStream(new GZIPInputStream(inputStream, bufferSize), bufferSize);
+            }
+            return inputStream;
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * writes a gzip compressed copy of a file
+     * @param source the uncompressed file
+     * @param target the file to write the compressed data to
+     * @throws IOException issue reading or writing
+     */
+    public static void compress(File source, File target) throws IOException {
+        try (InputStream inputStream = new FileInputStream(source);
+             OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(target), bufferSize)) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * returns whether a stream starts with the gzip magic number, without consuming any data
+     * @param inputStream the stream, which has to support mark/reset
+     * @return true/false
+     * @throws IOException issue reading the stream
+     */
+    private static boolean isCompressed(InputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int first = inputStream.read();
+        int second = inputStream.read();
+        inputStream.reset();
+        return first==(GZIPInputStream.GZIP_MAGIC & 0xff) && second==(GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+}
@@ -0,0 +1,297 @@
+package icrfgenerator.utils;
+
+import icrfgenerator.settings.GlobalSettings;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * keeps track of information about the files in the cache directory, such as when they were fetched, the
+ * ETag and Last-Modified headers the server sent along and the version of the data the file contains, which are
+ * used to check whether a file is still up to date
+ * it also keeps track of when files were last used, so the least recently used files can be removed once the cache
+ * grows beyond its maximum size
+ * the information is stored in a properties file in the cache directory, with the file's name as prefix for its keys
+ * when files were last used is only kept in memory, and written along with the next change that is stored, when the
+ * cache is checked for its size or when the program exits
+ */
+public class CacheManifest {
+    private static final Logger logger = LogManager.getLogger(CacheManifest.class.getName());
+    private static final String manifestFileName = "cacheManifest.properties";
+
+    private static final String eTagKey = ".etag";
+    private static final String lastModifiedKey = ".lastModified";
+    private static final String fetchTimeKey = ".fetchTime";
+    private static final String versionKey = ".version";
+    private static final String lastAccessKey = ".lastAccess";
+
+    private final File cacheDir;
+    private final File manifestFile;
+    private final Properties properties = new Properties();
+    // files used during this run, which are never removed to keep the cache within its size
+    private final Set<String> pinnedFiles = new HashSet<>();
+    // whether there are changes which haven't been written to disk yet
+    private boolean unsaved = false;
+
+    public static CacheManifest getInstance(){
+        return Holder.cacheManifest;
+    }
+
+    /**
+     * creates a manifest for the files in a directory, reading the manifest stored there if there is one
+     * @param cacheDir the directory
+     */
+    CacheManifest(File cacheDir){
+        this.cacheDir = cacheDir;
+        this.manifestFile = new File(cacheDir, manifestFileName);
+        if(manifestFile.exists()){
+            try (Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                // without the manifest all cached files are simply revalidated once they are old enough
+                logger.log(Level.WARN, "Unable to read the cache manifest: "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * returns the ETag the server sent along with the file
+     * @param file the cached file
+     * @return the ETag or null if there is none
+     */
+    public synchronized String getETag(File file){
+        return properties.getProperty(file.getName()+eTagKey);
+    }
+
+    /**
+     * returns the Last-Modified date the server sent along with the file
+     * @param file the cached file
+     * @return the Last-Modified date or null if there is none
+     */
+    public synchronized String getLastModified(File file){
+        return properties.getProperty(file.getName()+lastModifiedKey);
+    }
+
+    /**
+     * returns when the file was fetched or last confirmed to be up to date
+     * for files we know nothing about, the moment the file was written is used
+     * @param file the cached file
+     * @return time in ms since the epoch
+     */
+    public synchronized long getFetchTime(File file){
+        String fetchTime = properties.getProperty(file.getName()+fetchTimeKey);
+        return fetchTime==null ? file.lastModified() : Long.parseLong(fetchTime);
+    }
+
+    /**
+     * returns the version of the data the file was downloaded for, e.g. a dataset's version label and effective date
+     * @param file the cached file
+     * @return the version or null if it is unknown
+     */
+    public synchronized String getVersion(File file){
+        return properties.getProperty(file.getName()+versionKey);
+    }
+
+    /**
+     * returns when the file was last used
+     * for files of which we don't know this, the moment the file was fetched is used
+     * @param file the cached file
+     * @return time in ms since the epoch
+     */
+    public synchronized long getLastAccess(File file){
+        String lastAccess = properties.getProperty(file.getName()+lastAccessKey);
+        return lastAccess==null ? getFetchTime(file) : Long.parseLong(lastAccess);
+    }
+
+    /**
+     * store that a file is used and pin it, so it isn't removed from the cache during this run
+     * this happens for every file that is used, so it isn't written to disk right away
+     * @param file the cached file
+     */
+    public synchronized void setAccessed(File file){
+        pinnedFiles.add(file.getName());
+        properties.setProperty(file.getName()+lastAccessKey, Long.toString(System.currentTimeMillis()));
+        unsaved = true;
+    }
+
+    /**
+     * store the details of a file that was just downloaded
+     * @param file         the cached file
+     * @param eTag         the ETag header, or null if the server didn't send one
+     * @param lastModified the Last-Modified header, or null if the server didn't send one
+     * @param version      the version of the data the file was downloaded for, or null if it is unknown
+     */
+    public synchronized void setFetched(File file, String eTag, String lastModified, String version){
+        setProperty(file.getName()+eTagKey, eTag);
+        setProperty(file.getName()+lastModifiedKey, lastModified);
+        setProperty(file.getName()+versionKey, version);
+        properties.setProperty(file.getName()+fetchTimeKey, Long.toString(System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * store that the server confirmed the file is still up to date
+     * @param file    the cached file
+     * @param version the version of the data the file was checked for, or null if it is unknown
+     */
+    public synchronized void setRevalidated(File file, String version){
+        if(version!=null){
+            properties.setProperty(file.getName()+versionKey, version);
+        }
+        properties.setProperty(file.getName()+fetchTimeKey, Long.toString(System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * store the version of the data a file contains, for files of which the version is only known once they are read
+     * @param file    the cached file
+     * @param version the version
+     */
+    public synchronized void setVersion(File file, String version){
+        if(!version.equals(properties.getProperty(file.getName()+versionKey))){
+            properties.setProperty(file.getName()+versionKey, version);
+            save();
+        }
+    }
+
+    /**
+     * forget everything about a file, e.g. when it is removed
+     * @param file the file
+     */
+    public synchronized void remove(File file){
+        removeProperties(file.getName());
+        save();
+    }
+
+    /**
+     * removes the least recently used files from the cache until the cache fits within its maximum size
+     * only files in the manifest are considered, which are the files that were downloaded or used by the program.
+     * Files used during this run and incomplete downloads are never removed.
+     * @param maxSize maximum size of the cached files (bytes); 0 or less means there is no maximum
+     */
+    public synchronized void evict(long maxSize){
+        if(maxSize<=0){
+            flush();
+            return;
+        }
+        long totalSize = 0;
+        List<File> candidates = new ArrayList<>();
+        for(String fileName:getFileNames()){
+            File file = new File(cacheDir, fileName);
+            if(!file.exists()){
+                continue;
+            }
+            totalSize+=file.length();
+            if(!pinnedFiles.contains(fileName) && !fileName.endsWith(".part")){
+                candidates.add(file);
+            }
+        }
+        if(totalSize<=maxSize){
+            flush();
+            return;
+        }
+
+        candidates.sort(Comparator.comparingLong(this::getLastAccess));
+        for(File file:candidates){
+            if(totalSize<=maxSize){
+                break;
+            }
+            long size = file.length();
+            if(file.delete()){
+                logger.log(Level.INFO, "Removed "+file.getName()+" from the cache, as the cache exceeds its maximum size");
+                totalSize-=size;
+                removeProperties(file.getName());
+            }
+            else{
+                logger.log(Level.WARN, "Unable to remove "+file.getName()+" from the cache");
+            }
+        }
+        save();
+    }
+
+    /**
+     * returns the names of the files the manifest has information about
+     * @return the names of the files
+     */
+    private Set<String> getFileNames(){
+        Set<String> fileNames = new HashSet<>();
+        for(String key:properties.stringPropertyNames()){
+            if(key.endsWith(fetchTimeKey)){
+                fileNames.add(key.substring(0, key.length()-fetchTimeKey.length()));
+            }
+            else if(key.endsWith(lastAccessKey)){
+                fileNames.add(key.substring(0, key.length()-lastAccessKey.length()));
+            }
+        }
+        return fileNames;
+    }
+
+    /**
+     * removes all properties of a file
+     * @param fileName name of the file
+     */
+    private void removeProperties(String fileName){
+        properties.remove(fileName+eTagKey);
+        properties.remove(fileName+lastModifiedKey);
+        properties.remove(fileName+fetchTimeKey);
+        properties.remove(fileName+versionKey);
+        properties.remove(fileName+lastAccessKey);
+    }
+
+    /**
+     * sets or, if the value is null, removes a property
+     * @param key   the key
+     * @param value the value
+     */
+    private void setProperty(String key, String value){
+        if(value==null){
+            properties.remove(key);
+        }
+        else{
+            properties.setProperty(key, value);
+        }
+    }
+
+    /**
+     * write the manifest to disk if it has changes which haven't been written yet
+     */
+    public synchronized void flush(){
+        if(unsaved){
+            save();
+        }
+    }
+
+    /**
+     * write the manifest to disk
+     * a temporary file is written first, so an interrupted write doesn't leave a broken manifest behind
+     */
+    private void save(){
+        unsaved = false;
+        File tmpFile = new File(manifestFile.getPath()+".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                properties.store(writer, "iCRFGenerator cache manifest");
+            }
+            Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.WARN, "Unable to store the cache manifest: "+e.getMessage());
+        }
+    }
+
+    /**
+     * the manifest of the cache directory, which is only read once it is first used
+     */
+    private static class Holder {
+        private static final CacheManifest cacheManifest = new CacheManifest(new File(GlobalSettings.getCacheDir()));
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(cacheManifest::flush, "cache-manifest-flush"));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019 VUmc/KWF TraIT2Health-RI
+ *
+ * This file is part of iCRFGenerator
+ *
+ * iCRFGenerator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * iCRFGenerator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with iCRFGenerator. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package icrfgenerator.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * the order in which codelist codes are shown
+ * codes which are integers are ordered by their value and come before the other codes, which are ordered
+ * alphabetically, ignoring case. Codes that are still equal are ordered by their exact text.
+ * Whether a code is an integer is determined by looking at its characters, so no exceptions are thrown and caught
+ * while sorting.
+ */
+public class CodeOrdering {
+    // returned by getIntegerValue for codes that aren't integers; outside the range of int, so never a valid value
+    private static final long notAnInteger = Long.MIN_VALUE;
+    private static final Comparator<String> codeComparator = CodeOrdering::compareCodes;
+
+    /**
+     * returns a comparator which orders codes
+     * @return the comparator
+     */
+    public static Comparator<String> getComparator(){
+        return codeComparator;
+    }
+
+    /**
+     * sorts a list by the codes of its elements
+     * the code of every element is classified and parsed once, after which the elements are sorted by these sort keys
+     * @param list         the list to sort
+     * @param codeFunction function which returns the code of an element
+     * @param <T>          type of the elements
+     */
+    public static <T> void sort(List<T> list, Function<T, String> codeFunction){
+        List<SortKey<T>> sortKeys = new ArrayList<>(list.size());
+        for(T element:list){
+            sortKeys.add(new SortKey<>(codeFunction.apply(element), element));
+        }
+        sortKeys.sort(SortKey::compareTo);
+        for(int i=0; i<sortKeys.size(); i++){
+            list.set(i, sortKeys.get(i).element);
+        }
+    }
+
+    /**
+     * returns whether a code is an integer, in the same way Integer.parseInt would accept it
+     * @param code the code
+     * @return true/false
+     */
+    public static boolean isInteger(String code){
+        return getIntegerValue(code)!=notAnInteger;
+    }
+
+    /**
+     * compares two codes
+     * @param code1 first code
+     * @param code2 second code
+     * @return negative, zero or positive if the first code comes before, is the same as or comes after the second code
+     */
+    private static int compareCodes(String code1, String code2){
+        return compare(code1, getIntegerValue(code1), code2, getIntegerValue(code2));
+    }
+
+    /**
+     * compares two codes of which the integer values are known
+     * @param code1  first code
+     * @param value1 integer value of the first code or notAnInteger
+     * @param code2  second code
+     * @param value2 integer value of the second code or notAnInteger
+     * @return negative, zero or positive if the first code comes before, is the same as or comes after the second code
+     */
+    private static int compare(String code1, long value1, String code2, long value2){
+        boolean isInteger1 = value1!=notAnInteger;
+        boolean isInteger2 = value2!=notAnInteger;
+        int result;
+        if(isInteger1 && isInteger2){
+            result = Long.compare(value1, value2);
+        }
+        else if(isInteger1 || isInteger2){
+            return isInteger1 ? -1 : 1;
+        }
+        else{
+            result = code1.compareToIgnoreCase(code2);
+        }
+        return result!=0 ? result : code1.compareTo(code2);
+    }
+
+    /**
+     * returns the value of a code that is an integer
+     * accepts what Integer.parseInt accepts: an optional sign followed by digits, within the range of an int
+     * @param code the code
+     * @return the value or notAnInteger if the code isn't an integer
+     */
+    private static long getIntegerValue(String code){
+        int length = code.length();
+        int start = length>0 && (code.charAt(0)=='-' || code.charAt(0)=='+') ? 1 : 0;
+        if(length==start){
+            return notAnInteger;
+        }
+        long value = 0;
+        for(int i=start; i<length; i++){
+            int digit = Character.digit(code.charAt(i), 10);
+            if(digit<0){
+                return notAnInteger;
+            }
+            value = value*10+digit;
+            // stop before the value can overflow; leading zeros don't add to it, so any number of them is accepted
+            if(value>-(long)Integer.MIN_VALUE){
+                return notAnInteger;
+            }
+        }
+        if(code.charAt(0)=='-'){
+            value = -value;
+        }
+        return value<Integer.MIN_VALUE || value>Integer.MAX_VALUE ? notAnInteger : value;
+    }
+
+    /**
+     * an element with its code, classified and parsed once for sorting
+     * @param <T> type of the element
+     */
+    private static class SortKey<T> implements Comparable<SortKey<T>> {
+        private final String code;
+        private final long value;
+        private final T element;
+
+        private SortKey(String code, T element){
+            this.code = code;
+            this.value = getIntegerValue(code);
+            this.element = element;
+        }
+
+        @Override
+        public int compareTo(SortKey<T> other){
+            return compare(code, value, other.code, other.value);
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package icrfgenerator.utils;
 
 import icrfgenerator.resourcemanagement.ResourceManager;
+import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Control;
@@ -108,6 +109,20 @@ public class GUIUtils {
         return borderPane;
     }
 
+    /**
+     * create a pane with a loading icon, a message and a label which shows the progress
+     * @param message  the message to show
+     * @param progress the progress text which is shown below the loading icon
+     * @return the pane
+     */
+    public static BorderPane createLoadingPane(String message, ObservableValue<String> progress){
+        BorderPane borderPane = createLoadingPane(message);
+        Label progressLabel = new Label();
+        progressLabel.textProperty().bind(progress);
+        borderPane.setBottom(progressLabel);
+        return borderPane;
+    }
+
     /**
      * create a pane with a loading icon and a message
      * @param message the message to show
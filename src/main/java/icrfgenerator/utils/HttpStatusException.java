@@ -0,0 +1,30 @@
+package icrfgenerator.utils;
+
+import java.io.IOException;
+
+/**
+ * thrown when a server responds with a status code that indicates the call did not succeed
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    /**
+     * constructor
+     * @param statusCode the status code the server responded with
+     * @param uri        the call's URI
+     */
+    HttpStatusException(int statusCode, String uri){
+        super("Server returned status "+statusCode+" for "+uri);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * returns the status code the server responded with
+     * @return the status code
+     */
+    public int getStatusCode(){
+        return statusCode;
+    }
+}
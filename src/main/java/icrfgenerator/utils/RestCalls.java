@@ -5,21 +5,79 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.io.*;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * stuff related to getting codebooks
+ * all calls share a single http client, so connections to a server are kept alive and reused
  */
 public class RestCalls {
     private static final Logger logger = LogManager.getLogger(RestCalls.class.getName());
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            // the connection is shared by all calls, so use the most lenient of the connection timeouts
+            .connectTimeout(Duration.ofMillis(Math.max(GlobalSettings.getMetaDataConnectionTimeout(), GlobalSettings.getCodebookConnectionTimeout())))
+            .build();
+    // downloads that are running; local file --> download
+    private static final Map<String, CompletableFuture<File>> downloadsInProgress = new ConcurrentHashMap<>();
+    // files that were checked with the server during this run
+    private static final Set<String> revalidatedFiles = ConcurrentHashMap.newKeySet();
+    // bytes received for downloads and bytes stored after decompression
+    private static final AtomicLong receivedBytes = new AtomicLong();
+    private static final AtomicLong decodedBytes = new AtomicLong();
+    // aborts downloads of which the body stalls; the request's timeout only covers waiting for the response headers
+    private static final ScheduledExecutorService readTimeoutWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // handles the responses, i.e. writing, decompressing and compressing the data and evicting files from the cache,
+    // so the http client's own threads are never blocked by file operations
+    private static final ExecutorService responseExecutor = createResponseExecutor();
+
+    /**
+     * creates the pool of threads handling the responses
+     * the threads are stopped when there is nothing to do, so the pool doesn't keep the program alive
+     * @return the pool
+     */
+    private static ExecutorService createResponseExecutor(){
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "download-response");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     /**
      * checks whether a file exists locally
@@ -30,43 +88,417 @@ public class RestCalls {
      * @return the file
      */
     public static File getFile(String uri, String fileName){
-        File dataFile = new File(fileName);
+        return getFile(uri, fileName, null);
+    }
+
+    /**
+     * checks whether a file exists locally for a specific version of the data
+     * if so, it returns it
+     * if not, it downloads it
+     * @param uri      where to find the file if it needs to be downloaded
+     * @param fileName the file to find
+     * @param version  the version of the data we need, e.g. a dataset's version label and effective date, or null if unknown
+     * @return the file
+     */
+    public static File getFile(String uri, String fileName, String version){
         try {
+            return await(getFileAsync(uri, fileName, version));
+        } catch (IOException e) {
+            throw new RuntimeException("There was an issue downloading the source file... This is fatal...", e);
+        }
+    }
+
+    /**
+     * checks whether a file exists locally
+     * if so, it returns it, after checking with the server whether it is still up to date if it is older than the
+     * cache's maximum age
+     * if not, it starts downloading it. A file that is already being downloaded is not downloaded a second time.
+     * @param uri      where to find the file if it needs to be downloaded
+     * @param fileName the file to find
+     * @return future which completes with the file once it is available
+     */
+    public static CompletableFuture<File> getFileAsync(String uri, String fileName){
+        return getFileAsync(uri, fileName, null);
+    }
+
+    /**
+     * checks whether a file exists locally for a specific version of the data
+     * if we know for which version the cached file was downloaded, it is used if that is the version we need and
+     * downloaded again otherwise, without checking with the server. If we don't know the version, the cached file is
+     * checked with the server once it is older than the cache's maximum age.
+     * A file that is already being downloaded is not downloaded a second time.
+     * @param uri      where to find the file if it needs to be downloaded
+     * @param fileName the file to find
+     * @param version  the version of the data we need, e.g. a dataset's version label and effective date, or null if unknown
+     * @return future which completes with the file once it is available
+     */
+    public static CompletableFuture<File> getFileAsync(String uri, String fileName, String version){
+        return getFileAsync(uri, fileName, version, GlobalSettings.getCacheMaxAge());
+    }
+
+    /**
+     * checks whether a file exists locally for a specific version of the data, using a specific maximum age
+     * @param uri      where to find the file if it needs to be downloaded
+     * @param fileName the file to find
+     * @param version  the version of the data we need, or null if unknown
+     * @param maxAge   age (ms) after which a file of unknown version is checked with the server
+     * @return future which completes with the file once it is available
+     */
+    public static CompletableFuture<File> getFileAsync(String uri, String fileName, String version, long maxAge){
+        File dataFile = new File(fileName);
+        String key = dataFile.getAbsolutePath();
+        // the file is part of this run's selection, so keep it in the cache
+        CacheManifest.getInstance().setAccessed(dataFile);
+
+        // a file which is being downloaded already exists, but isn't complete yet; hence first check the downloads
+        CompletableFuture<File> download = downloadsInProgress.get(key);
+        if(download==null){
+            if(dataFile.exists() && isCurrent(dataFile, version, maxAge)){
+                logger.log(Level.INFO, "Opening the codebook file: "+dataFile.getName());
+                return CompletableFuture.completedFuture(dataFile);
+            }
+            download = downloadsInProgress.computeIfAbsent(key, t -> startDownload(uri, dataFile, version, maxAge));
+            CompletableFuture<File> registeredDownload = download;
+            registeredDownload.whenComplete((file, e) -> downloadsInProgress.remove(key, registeredDownload));
+        }
+        return download.thenApply(file -> {
+            logger.log(Level.INFO, "Opening the codebook file: "+file.getName());
+            return file;
+        });
+    }
+
+    /**
+     * downloads a file if it doesn't exist, downloads it again if it is of another version or revalidates it if it is too old
+     * @param uri      where to find the file
+     * @param dataFile the file locally
+     * @param version  the version of the data we need, or null if unknown
+     * @param maxAge   age (ms) after which a file of unknown version is checked with the server
+     * @return future which completes with the file once it is available
+     */
+    private static CompletableFuture<File> startDownload(String uri, File dataFile, String version, long maxAge){
+        if(!dataFile.exists()){
             // check whether the file exists and download it if it doesn't
             // this is time-consuming; hence we're saving it locally
-            if(!dataFile.exists()){
-                downloadFile(uri, fileName);
+            logger.log(Level.INFO, "Retrieving a codebook using "+uri);
+            return downloadFile(uri, dataFile, version, false);
+        }
+        // another thread may have finished the download in the meantime
+        if(isCurrent(dataFile, version, maxAge)){
+            return CompletableFuture.completedFuture(dataFile);
+        }
+        // if the file is of another version, a conditional request makes no sense
+        if(version==null || CacheManifest.getInstance().getVersion(dataFile)==null){
+            logger.log(Level.INFO, "Checking whether the cached file "+dataFile.getName()+" is up to date using "+uri);
+            return downloadFile(uri, dataFile, version, true);
+        }
+        logger.log(Level.INFO, "The cached file "+dataFile.getName()+" is of another version; retrieving it again using "+uri);
+        return downloadFile(uri, dataFile, version, false);
+    }
+
+    /**
+     * returns whether a cached file can be used without contacting the server
+     * files are checked at most once per run, so a server that can't be reached doesn't slow down every request
+     * @param dataFile the cached file
+     * @param version  the version of the data we need, or null if unknown
+     * @param maxAge   age (ms) after which a file of unknown version is checked with the server
+     * @return true/false
+     */
+    private static boolean isCurrent(File dataFile, String version, long maxAge){
+        CacheManifest cacheManifest = CacheManifest.getInstance();
+        if(revalidatedFiles.contains(dataFile.getAbsolutePath())){
+            return true;
+        }
+        String cachedVersion = cacheManifest.getVersion(dataFile);
+        if(version!=null && cachedVersion!=null){
+            return version.equals(cachedVersion);
+        }
+        long age = System.currentTimeMillis()-cacheManifest.getFetchTime(dataFile);
+        return age<=maxAge;
+    }
+
+    /**
+     * downloads a codebook from a URI
+     * The data is written to a .part file, which is renamed to the actual file once it is complete, so an
+     * interrupted download never results in a truncated file being used. If a .part file of an earlier, interrupted
+     * download exists, the download continues where it stopped, provided the server supports range requests and
+     * the data hasn't changed in the meantime. If the server can't continue the .part file, it is removed and the
+     * download starts again from scratch.
+     * If the file already exists, it remains usable until the new version is complete. If the download fails, e.g.
+     * because we're offline, the existing file is used.
+     * @param uri         uri where the data will be retrieved
+     * @param dataFile    the file locally
+     * @param version     the version of the data, or null if unknown
+     * @param conditional whether to ask the server to only send the data if it differs from the existing file
+     * @return future which completes with the file once it is downloaded
+     */
+    private static CompletableFuture<File> downloadFile(String uri, File dataFile, String version, boolean conditional){
+        CacheManifest cacheManifest = CacheManifest.getInstance();
+        File partFile = new File(dataFile.getPath()+".part");
+        String resumeValidator = getResumeValidator(partFile, version);
+        long offset = resumeValidator==null ? 0 : partFile.length();
+
+        HttpRequest request;
+        try {
+            HttpRequest.Builder builder = createRequestBuilder(uri, GlobalSettings.getCodebookReadTimeout());
+            if(resumeValidator!=null){
+                logger.log(Level.INFO, "Resuming the download of "+dataFile.getName()+" at byte "+offset);
+                // If-Range ensures we get the complete data again if it changed since the .part file was started
+                builder.header("Range", "bytes="+offset+"-");
+                builder.header("If-Range", resumeValidator);
+                // the .part file contains decoded data, so the range has to refer to the data without compression
+                builder.header("Accept-Encoding", "identity");
+            }
+            else {
+                // the xml and adl files compress very well
+                builder.header("Accept-Encoding", "gzip, deflate");
+            }
+            if(resumeValidator==null && conditional){
+                String eTag = cacheManifest.getETag(dataFile);
+                String lastModified = cacheManifest.getLastModified(dataFile);
+                if(eTag!=null){
+                    builder.header("If-None-Match", eTag);
+                }
+                if(lastModified!=null){
+                    builder.header("If-Modified-Since", lastModified);
+                }
+            }
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("Invalid uri: "+uri, e));
+        }
+
+        // only stream the body if the request was successful
+        HttpResponse.BodyHandler<InputStream> bodyHandler = responseInfo -> responseInfo.statusCode()==200 || responseInfo.statusCode()==206 ?
+                HttpResponse.BodySubscribers.ofInputStream() :
+                HttpResponse.BodySubscribers.replacing(null);
+
+        boolean existed = dataFile.exists();
+        return httpClient.sendAsync(request, bodyHandler).thenComposeAsync(response -> {
+            int statusCode = response.statusCode();
+            if(resumeValidator!=null && (statusCode==416 || (statusCode==206 && !isContinuation(response.headers(), offset)))){
+                // the .part file can't be continued, so download the file from the start right away
+                closeBody(response);
+                logger.log(Level.INFO, "Unable to resume the download of "+dataFile.getName()+"; retrieving it from the start");
+                deletePartFile(partFile);
+                return downloadFile(uri, dataFile, version, conditional);
             }
-            logger.log(Level.INFO, "Opening the codebook file: "+dataFile.getName());
-            return dataFile;
+            if(statusCode==304){
+                logger.log(Level.INFO, "The cached file "+dataFile.getName()+" is up to date");
+                cacheManifest.setRevalidated(dataFile, version);
+            }
+            else if(statusCode==200 || (statusCode==206 && resumeValidator!=null)){
+                if(statusCode==200){
+                    // remember what we're downloading, so we can resume the download if it's interrupted
+                    setFetched(partFile, response.headers(), version);
+                }
+                writeBody(response, partFile, statusCode==206);
+                storeFile(partFile, dataFile);
+                cacheManifest.remove(partFile);
+                setFetched(dataFile, response.headers(), version);
+                cacheManifest.evict(GlobalSettings.getCacheMaxSize());
+            }
+            else{
+                closeBody(response);
+                throw new CompletionException(new HttpStatusException(statusCode, uri));
+            }
+            return CompletableFuture.completedFuture(dataFile);
+        }, responseExecutor).handle((file, e) -> {
+            if(e==null){
+                return file;
+            }
+            if(existed){
+                logger.log(Level.WARN, "Unable to retrieve "+dataFile.getName()+"; using the cached file: "+e.getMessage());
+                return dataFile;
+            }
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        }).whenComplete((file, e) -> revalidatedFiles.add(dataFile.getAbsolutePath()));
+    }
+
+    /**
+     * writes the body of a response to a file, decoding it if the server compressed it
+     * the download is aborted if no data is received for longer than the read timeout
+     * @param response the response
+     * @param file     the file
+     * @param append   whether to append the body to the file, e.g. when resuming a download
+     */
+    private static void writeBody(HttpResponse<InputStream> response, File file, boolean append){
+        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        CountingInputStream receivedStream = new CountingInputStream(response.body());
+        int readTimeout = GlobalSettings.getCodebookReadTimeout();
+        long checkInterval = Math.max(readTimeout/4, 1);
+        ScheduledFuture<?> watchdog = readTimeoutWatchdog.scheduleWithFixedDelay(() -> receivedStream.closeIfIdle(readTimeout), checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        long written = 0;
+        try (InputStream inputStream = decode(receivedStream, contentEncoding);
+             OutputStream outputStream = new FileOutputStream(file, append)) {
+            written = inputStream.transferTo(outputStream);
         } catch (IOException e) {
-            throw new RuntimeException("There was an issue downloading the source file... This is fatal...");
+            throw new UncheckedIOException(e);
+        } finally {
+            watchdog.cancel(false);
+            receivedBytes.addAndGet(receivedStream.getCount());
+            decodedBytes.addAndGet(written);
         }
+        logger.log(Level.INFO, "Retrieved "+file.getName()+": "+receivedStream.getCount()+" bytes transferred, "+written+" bytes stored ("+contentEncoding+")");
     }
 
     /**
-     * downloads a codebook from a URI
-     * @param uri       uri where the data will be retrieved
-     * @param fileName  name of the file locally
-     * @throws IOException exception
+     * wraps a stream in a stream which decodes the content encoding
+     * @param inputStream     the stream as received
+     * @param contentEncoding the content encoding of the stream
+     * @return the decoded stream
+     * @throws IOException unsupported or invalid content encoding
+     */
+    private static InputStream decode(InputStream inputStream, String contentEncoding) throws IOException {
+        return switch (contentEncoding.trim().toLowerCase()) {
+            case "gzip", "x-gzip" -> new GZIPInputStream(inputStream, 65536);
+            case "deflate" -> inflate(inputStream);
+            case "identity", "" -> inputStream;
+            default -> throw new IOException("Unsupported content encoding: "+contentEncoding);
+        };
+    }
+
+    /**
+     * wraps a deflate encoded stream in a stream which decodes it
+     * deflate should be wrapped in zlib format, but some servers send raw deflate data, so the zlib header is checked
+     * @param inputStream the stream as received
+     * @return the decoded stream
+     * @throws IOException issue reading the stream
+     */
+    private static InputStream inflate(InputStream inputStream) throws IOException {
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, 2);
+        byte [] header = pushbackInputStream.readNBytes(2);
+        pushbackInputStream.unread(header);
+        // a zlib header uses compression method 8 (deflate) and is a multiple of 31
+        boolean zlib = header.length==2 && (header[0] & 0x0f)==8 && (((header[0] & 0xff)<<8) | (header[1] & 0xff))%31==0;
+        return new InflaterInputStream(pushbackInputStream, new Inflater(!zlib), 65536);
+    }
+
+    /**
+     * closes the body of a response we're not interested in
+     * @param response the response
+     */
+    private static void closeBody(HttpResponse<InputStream> response){
+        if(response.body()!=null){
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                logger.log(Level.DEBUG, "Unable to close a response: "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * returns the number of bytes received from servers for codebook downloads
+     * if the server compressed the data, this is the compressed size
+     * @return number of bytes received
      */
-    private static void downloadFile(String uri, String fileName) throws IOException{
-        logger.log(Level.INFO, "Retrieving a codebook using "+uri);
+    public static long getReceivedBytes(){
+        return receivedBytes.get();
+    }
 
-        // open a url connection
-        URL url = new URL(uri);
-        URLConnection urlConnection = url.openConnection();
+    /**
+     * returns the number of bytes stored for codebook downloads, which is the uncompressed size
+     * @return number of bytes stored
+     */
+    public static long getDecodedBytes(){
+        return decodedBytes.get();
+    }
 
-        // set the connection timeout as specified in the global settings
-        urlConnection.setConnectTimeout(GlobalSettings.getCodebookConnectionTimeout());
-        urlConnection.setReadTimeout(GlobalSettings.getCodebookReadTimeout());
+    /**
+     * returns the value for the If-Range header if the download of a .part file can be resumed
+     * this is only possible if the server sent a strong ETag or a Last-Modified header when the download started
+     * @param partFile the .part file
+     * @param version  the version of the data we need, or null if unknown
+     * @return the If-Range value or null if the download can't be resumed
+     */
+    private static String getResumeValidator(File partFile, String version){
+        if(!partFile.exists() || partFile.length()==0){
+            return null;
+        }
+        CacheManifest cacheManifest = CacheManifest.getInstance();
+        String partVersion = cacheManifest.getVersion(partFile);
+        if(version!=null && partVersion!=null && !version.equals(partVersion)){
+            return null;
+        }
+        String eTag = cacheManifest.getETag(partFile);
+        if(eTag!=null && !eTag.startsWith("W/")){
+            return eTag;
+        }
+        return cacheManifest.getLastModified(partFile);
+    }
 
-        // get a stream to read data from
-        urlConnection.connect();
-        ReadableByteChannel readableByteChannel = Channels.newChannel(urlConnection.getInputStream());
-        FileOutputStream fileOutputStream = new FileOutputStream(fileName);
-        fileOutputStream.getChannel().transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
+    /**
+     * returns whether a 206 (partial content) response continues at the end of the .part file
+     * @param headers the response headers
+     * @param offset  the size of the .part file when the request was sent
+     * @return true/false
+     */
+    private static boolean isContinuation(HttpHeaders headers, long offset){
+        // e.g. Content-Range: bytes 1000-4999/5000
+        return offset>0 && headers.firstValue("Content-Range").map(t -> t.startsWith("bytes "+offset+"-")).orElse(false);
+    }
 
+    /**
+     * turns a completed .part file into the actual file, compressing it if the cache is to be stored compressed
+     * the .part file itself is never compressed, as resuming a download requires its uncompressed size
+     * @param partFile the completed .part file
+     * @param dataFile the file locally
+     */
+    private static void storeFile(File partFile, File dataFile){
+        if(!GlobalSettings.isCacheCompressed()){
+            moveFile(partFile, dataFile);
+            return;
+        }
+        File compressedFile = new File(partFile.getPath()+".gz");
+        try {
+            CacheFileUtils.compress(partFile, compressedFile);
+        } catch (IOException e) {
+            compressedFile.delete();
+            throw new UncheckedIOException(e);
+        }
+        moveFile(compressedFile, dataFile);
+        if(!partFile.delete()){
+            logger.log(Level.ERROR, "Unable to remove the file "+partFile.getName());
+        }
+        logger.log(Level.INFO, "Stored "+dataFile.getName()+" compressed: "+dataFile.length()+" bytes");
+    }
+
+    /**
+     * replaces a file by another file, atomically if the file system supports this
+     * @param source the new file
+     * @param target the file to replace
+     */
+    private static void moveFile(File source, File target){
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * removes a .part file that can't be continued
+     * @param partFile the .part file
+     */
+    private static void deletePartFile(File partFile){
+        CacheManifest.getInstance().remove(partFile);
+        if(partFile.exists() && !partFile.delete()){
+            logger.log(Level.ERROR, "Unable to remove the incomplete file "+partFile.getName());
+        }
+    }
+
+    /**
+     * store the validators the server sent along with a file in the cache manifest
+     * @param file    the file
+     * @param headers the headers of the server's response
+     * @param version the version of the data, or null if unknown
+     */
+    private static void setFetched(File file, HttpHeaders headers, String version){
+        CacheManifest.getInstance().setFetched(file, headers.firstValue("ETag").orElse(null), headers.firstValue("Last-Modified").orElse(null), version);
     }
 
     /**
@@ -76,9 +508,144 @@ public class RestCalls {
      * @throws IOException issue with the call
      */
     public static String generalCall(String uri) throws IOException {
-        try (Scanner scanner = new Scanner(new URL(uri).openStream(), StandardCharsets.UTF_8)){
-            scanner.useDelimiter("\\A");
-            return scanner.hasNext() ? scanner.next() : "";
+        return await(generalCallAsync(uri));
+    }
+
+    /**
+     * a general asynchronous REST call
+     * @param uri the call's URI
+     * @return future which completes with a String of the output
+     */
+    public static CompletableFuture<String> generalCallAsync(String uri){
+        return sendAsync(uri, GlobalSettings.getMetaDataReadTimeout(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * sends a GET request using the shared client
+     * @param uri         the call's URI
+     * @param readTimeout timeout (ms) for receiving the response
+     * @param bodyHandler handles the body of the response
+     * @param <T>         type of the body
+     * @return future which completes with the body, or completes exceptionally with an IOException if the request failed
+     */
+    private static <T> CompletableFuture<T> sendAsync(String uri, int readTimeout, HttpResponse.BodyHandler<T> bodyHandler){
+        HttpRequest request;
+        try {
+            request = createRequestBuilder(uri, readTimeout).build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("Invalid uri: "+uri, e));
+        }
+        // whatever the caller does with the body, e.g. parsing it, doesn't run on the http client's threads
+        return httpClient.sendAsync(request, bodyHandler).thenApplyAsync(response -> {
+            if(response.statusCode()!=200){
+                throw new CompletionException(new HttpStatusException(response.statusCode(), uri));
+            }
+            return response.body();
+        }, responseExecutor);
+    }
+
+    /**
+     * creates a builder for a GET request
+     * @param uri         the call's URI
+     * @param readTimeout timeout (ms) for receiving the response
+     * @return the request builder
+     * @throws IllegalArgumentException the uri is invalid
+     */
+    private static HttpRequest.Builder createRequestBuilder(String uri, int readTimeout){
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofMillis(readTimeout)).GET();
+    }
+
+    /**
+     * waits for a call to finish
+     * @param future the call
+     * @param <T>    type of the result
+     * @return the result of the call
+     * @throws IOException issue with the call
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * stream which keeps track of the number of bytes read and of when data was last received
+     * once the stream is closed because it was idle for too long, reading always fails, so a blocked read that
+     * returns end of stream when the body is closed can't make a truncated body look complete
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+        private volatile long lastReceived = System.nanoTime();
+        private volatile boolean timedOut = false;
+
+        CountingInputStream(InputStream inputStream){
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            checkTimedOut();
+            if(value!=-1){
+                count++;
+                lastReceived = System.nanoTime();
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            checkTimedOut();
+            if(read>0){
+                count+=read;
+                lastReceived = System.nanoTime();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            checkTimedOut();
+            count+=skipped;
+            lastReceived = System.nanoTime();
+            return skipped;
+        }
+
+        /**
+         * closes the stream if no data was received for longer than the read timeout, which aborts a blocked read
+         * @param readTimeout the read timeout (ms)
+         */
+        void closeIfIdle(int readTimeout){
+            if(timedOut || System.nanoTime()-lastReceived<=TimeUnit.MILLISECONDS.toNanos(readTimeout)){
+                return;
+            }
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.log(Level.WARN, "Unable to abort a stalled download: "+e.getMessage());
+            }
+        }
+
+        /**
+         * fails if the stream was closed by the read timeout
+         * @throws IOException the stream was closed because no data was received for too long
+         */
+        private void checkTimedOut() throws IOException {
+            if(timedOut){
+                throw new SocketTimeoutException("No data received within the read timeout");
+            }
+        }
+
+        long getCount(){
+            return count;
         }
     }
 }
@@ -31,6 +31,9 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -65,6 +68,17 @@ public class XMLUtils {
         return cleanString(element.getAttribute(attributeName));
     }
 
+    /**
+     * returns the value of an xml attribute of the element the stream reader is currently positioned at
+     * @param reader        stream reader positioned at a start element
+     * @param attributeName name of the attribute
+     * @return the value of an xml attribute or empty string if the attribute does not exist;
+     */
+    public static String getAttributeValue(XMLStreamReader reader, String attributeName){
+        String value = reader.getAttributeValue(null, attributeName);
+        return value==null ? "" : cleanString(value);
+    }
+
     /**
      * checks whether this element is of interest for us in our codebook, which depends on the statuscode of the element;
      * we're only interested in items which are "draft" or "final"
@@ -72,7 +86,15 @@ public class XMLUtils {
      * @return true/false
      */
     public static boolean hasValidStatusCode(Element element){
-        String statusCode = getAttributeValue(element, "statusCode");
+        return isValidStatusCode(getAttributeValue(element, "statusCode"));
+    }
+
+    /**
+     * checks whether a statuscode is of interest for us in our codebook; we're only interested in "draft" or "final"
+     * @param statusCode the statuscode to check
+     * @return true/false
+     */
+    public static boolean isValidStatusCode(String statusCode){
         return statusCode.equalsIgnoreCase("draft") || statusCode.equalsIgnoreCase("final");
     }
 
@@ -147,10 +169,54 @@ public class XMLUtils {
      * @return true/false
      */
     public static boolean isGroupElement(Element conceptElement){
-        String elementType = getAttributeValue(conceptElement, "type");
+        return isGroupType(getAttributeValue(conceptElement, "type"));
+    }
+
+    /**
+     * checks whether the type of a concept is the group type
+     * @param elementType the type to check
+     * @return true/false
+     */
+    public static boolean isGroupType(String elementType){
         return elementType.equalsIgnoreCase("group");
     }
 
+    /**
+     * the streaming counterpart of getTextContent: collects the text of the element the reader is positioned at,
+     * including the text of nested elements. Afterwards the reader is positioned at the element's end element
+     * @param reader stream reader positioned at a start element
+     * @return text value
+     * @throws XMLStreamException issue reading the stream
+     */
+    public static String getElementText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder stringBuilder = new StringBuilder();
+        int depth = 1;
+        while(depth>0){
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT -> depth++;
+                case XMLStreamConstants.END_ELEMENT -> depth--;
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> stringBuilder.append(reader.getText());
+                default -> {}
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * skips the element the reader is positioned at, including all its children
+     * Afterwards the reader is positioned at the element's end element
+     * @param reader stream reader positioned at a start element
+     * @throws XMLStreamException issue reading the stream
+     */
+    public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while(depth>0){
+            int event = reader.next();
+            if(event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if(event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
     /**
      * transform the XML string into a properly indented string for readability
      * @param xmlString the xml string
@@ -0,0 +1,180 @@
+package icrfgenerator.codebook;
+
+import icrfgenerator.codebook.artdecor.CodebookItemArtDecor;
+import icrfgenerator.codebook.shared.CodebookStructureNode;
+import icrfgenerator.types.NodeType;
+import icrfgenerator.types.OperatorType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodebookSnapshotTest {
+    private static final String key = "codebook|dataset|en-US";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void isValidWhileTheSourceFilesAreUnchanged() throws Exception {
+        SourceFile sourceFile = createSourceFile("dataset.xml", "<dataset/>");
+        CodebookSnapshot snapshot = writeAndRead(CodebookSnapshot.create(key, List.of(sourceFile), createRoot(), Map.of()));
+
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isValid(key, SourceFile::getFile));
+    }
+
+    @Test
+    void isInvalidOnceASourceFileChanged() throws Exception {
+        SourceFile unchanged = createSourceFile("archetype1.adls", "archetype 1");
+        SourceFile changed = createSourceFile("archetype2.adls", "archetype 2");
+        CodebookSnapshot snapshot = writeAndRead(CodebookSnapshot.create(key, List.of(unchanged, changed), createRoot(), Map.of()));
+
+        Files.writeString(changed.getFile().toPath(), "archetype 2, revised", StandardCharsets.UTF_8);
+        assertFalse(snapshot.isValid(key, SourceFile::getFile));
+    }
+
+    @Test
+    void isInvalidOnceASourceFileIsRemoved() throws Exception {
+        SourceFile sourceFile = createSourceFile("dataset.xml", "<dataset/>");
+        CodebookSnapshot snapshot = CodebookSnapshot.create(key, List.of(sourceFile), createRoot(), Map.of());
+
+        assertTrue(sourceFile.getFile().delete());
+        assertFalse(snapshot.isValid(key, SourceFile::getFile));
+    }
+
+    @Test
+    void checksTheRetrievedSourceFiles() throws Exception {
+        SourceFile sourceFile = createSourceFile("dataset.xml", "<dataset/>");
+        CodebookSnapshot snapshot = CodebookSnapshot.create(key, List.of(sourceFile), createRoot(), Map.of());
+
+        // e.g. a newer version of the dataset was downloaded because the cached file was too old
+        File sameContent = Files.writeString(tempDir.resolve("same.xml"), "<dataset/>", StandardCharsets.UTF_8).toFile();
+        File newContent = Files.writeString(tempDir.resolve("new.xml"), "<dataset version=\"2\"/>", StandardCharsets.UTF_8).toFile();
+        assertTrue(snapshot.isValid(key, t -> sameContent));
+        assertFalse(snapshot.isValid(key, t -> newContent));
+        assertFalse(snapshot.isValid(key, t -> {
+            throw new RuntimeException("There was an issue downloading the source file... This is fatal...");
+        }));
+    }
+
+    @Test
+    void isInvalidForAnotherCodebook() throws Exception {
+        SourceFile sourceFile = createSourceFile("dataset.xml", "<dataset/>");
+        CodebookSnapshot snapshot = CodebookSnapshot.create(key, List.of(sourceFile), createRoot(), Map.of());
+
+        assertFalse(snapshot.isValid("codebook|dataset|nl-NL", SourceFile::getFile));
+    }
+
+    @Test
+    void isInvalidWithoutSourceFiles() throws Exception {
+        CodebookSnapshot snapshot = CodebookSnapshot.create(key, List.of(), createRoot(), Map.of());
+
+        assertFalse(snapshot.isValid(key, SourceFile::getFile));
+    }
+
+    @Test
+    void restoresTheTreeAndTheItems() throws Exception {
+        CodebookStructureNode root = createRoot();
+        CodebookItemArtDecor group = new CodebookItemArtDecor("1", "Vitals", "Vital signs", NodeType.GROUPITEM);
+        CodebookItemArtDecor item = new CodebookItemArtDecor("2", "Heart rate", "Heart rate, ü", NodeType.LEAFITEM);
+        item.setMin("0");
+        item.setMinCheckOperator(OperatorType.GTE);
+        item.setUnits("/min");
+        item.getCustomPropertiesMap().put("property", "value");
+        item.addCodelistItem("1", "Regular", "2.16.840.1.113883.6.96", null);
+        item.addCodelistItem("2", "Irregular", "2.16.840.1.113883.6.96", "not regular");
+        CodebookStructureNode groupNode = new CodebookStructureNode(group);
+        root.addChild(groupNode);
+        groupNode.addChild(new CodebookStructureNode(item));
+
+        CodebookSnapshot snapshot = writeAndRead(CodebookSnapshot.create(key, List.of(createSourceFile("dataset.xml", "<dataset/>")),
+                root, Map.of("1", group, "2", item)));
+
+        CodebookStructureNode restoredGroupNode = snapshot.getRoot().getChildren().get(0);
+        CodebookItem restored = restoredGroupNode.getChildren().get(0).getValue();
+        // the tree and the item map share the items, as they do in the codebook itself
+        assertSame(restoredGroupNode.getValue(), snapshot.getCodebookItemMap().get("1"));
+        assertSame(restored, snapshot.getCodebookItemMap().get("2"));
+        assertEquals("-1", snapshot.getRoot().getValue().getId());
+        assertEquals("Heart rate, ü", restored.getItemDescription());
+        assertEquals(NodeType.LEAFITEM, restored.getNodeType());
+        assertEquals("0", restored.getMin());
+        assertEquals(OperatorType.GTE, restored.getMinCheckOperator());
+        assertEquals("", restored.getMax());
+        assertEquals(OperatorType.NONE, restored.getMaxCheckOperator());
+        assertEquals("/min", restored.getUnits());
+        assertEquals("value", restored.getCustomPropertiesMap().get("property"));
+        assertEquals(List.of("1", "2"), restored.getCodelistCodes());
+        assertEquals("Irregular", restored.getValueForOptionCode("2"));
+        assertEquals("not regular", restored.getDescriptionForOptionCode("2"));
+        assertNull(restored.getDescriptionForOptionCode("1"));
+    }
+
+    @Test
+    void rejectsTruncatedSnapshots() throws Exception {
+        File snapshotFile = tempDir.resolve("codebook.snapshot").toFile();
+        CodebookSnapshot.create(key, List.of(createSourceFile("dataset.xml", "<dataset/>")), createRoot(), Map.of()).write(snapshotFile);
+        byte [] bytes = Files.readAllBytes(snapshotFile.toPath());
+        Files.write(snapshotFile.toPath(), Arrays.copyOf(bytes, bytes.length-2));
+
+        assertThrows(IOException.class, () -> CodebookSnapshot.read(snapshotFile));
+    }
+
+    @Test
+    void ignoresSnapshotsWithAnotherLayout() throws Exception {
+        File snapshotFile = tempDir.resolve("old.snapshot").toFile();
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(snapshotFile))) {
+            outputStream.writeInt(0x69435246);
+            outputStream.writeInt(1);
+        }
+        assertNull(CodebookSnapshot.read(snapshotFile));
+
+        // a snapshot written with Java serialization by an earlier version
+        Files.write(snapshotFile.toPath(), new byte[]{(byte) 0xac, (byte) 0xed, 0x00, 0x05, 0x77, 0x04, 0x00, 0x00, 0x00, 0x02});
+        assertNull(CodebookSnapshot.read(snapshotFile));
+    }
+
+    /**
+     * creates the root of a codebook's tree
+     * @return the root
+     */
+    private static CodebookStructureNode createRoot(){
+        return new CodebookStructureNode(new CodebookItemArtDecor("-1", "codebook", "codebook", NodeType.GROUPITEM));
+    }
+
+    /**
+     * writes a source file to the temporary directory
+     * @param fileName name of the file
+     * @param content  content of the file
+     * @return the source file
+     * @throws IOException issue writing the file
+     */
+    private SourceFile createSourceFile(String fileName, String content) throws IOException {
+        Path path = Files.writeString(tempDir.resolve(fileName), content, StandardCharsets.UTF_8);
+        return new SourceFile(path.toString(), "https://example.org/"+fileName, null);
+    }
+
+    /**
+     * writes a snapshot to a file and reads it back
+     * @param snapshot the snapshot
+     * @return the snapshot that was read
+     * @throws Exception issue writing or reading the snapshot
+     */
+    private CodebookSnapshot writeAndRead(CodebookSnapshot snapshot) throws Exception {
+        File snapshotFile = tempDir.resolve("codebook.snapshot").toFile();
+        snapshot.write(snapshotFile);
+        return CodebookSnapshot.read(snapshotFile);
+    }
+}
@@ -0,0 +1,115 @@
+package icrfgenerator.codebook;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadingRegistryTest {
+
+    @Test
+    void loadsAValueOnce(){
+        LoadingRegistry<String> registry = new LoadingRegistry<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        assertFalse(registry.isLoaded("key"));
+        assertEquals("value", registry.getOrLoad("key", () -> {
+            loads.incrementAndGet();
+            return "value";
+        }));
+        assertEquals("value", registry.getOrLoad("key", () -> {
+            loads.incrementAndGet();
+            return "other value";
+        }));
+        assertEquals(1, loads.get());
+        assertTrue(registry.isLoaded("key"));
+        assertEquals("value", registry.get("key"));
+    }
+
+    @Test
+    void concurrentRequestsShareASingleLoad() throws Exception {
+        LoadingRegistry<Object> registry = new LoadingRegistry<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoader = new CountDownLatch(1);
+        int nrThreads = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(nrThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for(int i=0; i<nrThreads; i++){
+                futures.add(executorService.submit(() -> registry.getOrLoad("key", () -> {
+                    loads.incrementAndGet();
+                    loaderStarted.countDown();
+                    try {
+                        releaseLoader.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new Object();
+                })));
+            }
+            assertTrue(loaderStarted.await(10, TimeUnit.SECONDS));
+            // give the other threads the chance to find the load in progress
+            Thread.sleep(100);
+            releaseLoader.countDown();
+
+            Object value = futures.get(0).get(10, TimeUnit.SECONDS);
+            for(Future<Object> future:futures){
+                assertSame(value, future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void nullIsNotStored(){
+        LoadingRegistry<String> registry = new LoadingRegistry<>();
+
+        assertNull(registry.getOrLoad("key", () -> null));
+        assertFalse(registry.isLoaded("key"));
+        assertEquals("value", registry.getOrLoad("key", () -> "value"));
+    }
+
+    @Test
+    void failedLoadIsPassedOnAndRetried() throws Exception {
+        LoadingRegistry<String> registry = new LoadingRegistry<>();
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoader = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> failingLoad = executorService.submit(() -> registry.getOrLoad("key", () -> {
+                loaderStarted.countDown();
+                try {
+                    releaseLoader.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("unavailable");
+            }));
+            assertTrue(loaderStarted.await(10, TimeUnit.SECONDS));
+            Future<String> waitingLoad = executorService.submit(() -> registry.getOrLoad("key", () -> "value"));
+            Thread.sleep(100);
+            releaseLoader.countDown();
+
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> failingLoad.get(10, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof IllegalStateException);
+            // the second thread either waited for the failed load or started its own after the failure
+            try {
+                assertEquals("value", waitingLoad.get(10, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertEquals("value", registry.getOrLoad("key", () -> "value"));
+        assertTrue(registry.isLoaded("key"));
+    }
+}
@@ -0,0 +1,123 @@
+package icrfgenerator.codebook.openehr;
+
+import icrfgenerator.utils.CacheFileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ADLHeaderTest {
+    private static final String archetype = """
+            archetype (adl_version=2.0.6; rm_release=1.0.2; generated)
+                openEHR-EHR-OBSERVATION.blood_pressure.v2.0.3
+
+            language
+                original_language = <[ISO_639-1::en]>
+
+            definition
+                OBSERVATION[id1] matches {
+                    data matches {
+                        HISTORY[id2] matches {*}
+                    }
+                }
+
+            terminology
+                term_definitions = <
+                    ["en"] = <
+                        ["id1"] = <
+                            text = <"Blood pressure">
+                            description = <"Pressure > 0 and < 300, see \\"mmHg\\" <units>">
+                        >
+                    >
+                    ["nl"] = <
+                        ["id1"] = <
+                            text = <"Bloeddruk">
+                            description = <"Bloeddruk [\\"en\\"] = <">
+                        >
+                    >
+                >
+                term_bindings = <
+                    ["SNOMED-CT"] = <
+                        ["id1"] = <http://snomed.info/id/75367002>
+                    >
+                >
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void scansTheReleaseVersionAndLanguages() throws IOException {
+        ADLHeader header = ADLHeader.scan(write("archetype.adls", archetype));
+        assertNotNull(header);
+        assertEquals("2.0.3", header.getReleaseVersion());
+        assertEquals(List.of("en", "nl"), header.getLanguages());
+    }
+
+    @Test
+    void scansCompressedFiles() throws IOException {
+        File compressed = tempDir.resolve("archetype.adls.gz").toFile();
+        CacheFileUtils.compress(write("archetype.adls", archetype), compressed);
+        ADLHeader header = ADLHeader.scan(compressed);
+        assertNotNull(header);
+        assertEquals(List.of("en", "nl"), header.getLanguages());
+    }
+
+    @Test
+    void ignoresAByteOrderMark() throws IOException {
+        ADLHeader header = ADLHeader.scan(write("archetype.adls", "\uFEFF"+archetype));
+        assertNotNull(header);
+        assertEquals("2.0.3", header.getReleaseVersion());
+    }
+
+    @Test
+    void ignoresComments() throws IOException {
+        String commented = archetype
+                .replace("term_definitions = <", "term_definitions = < -- languages <")
+                .replace("            [\"nl\"] = <", "            -- [\"de\"] = < removed >>\n            [\"nl\"] = <")
+                .replace("text = <\"Bloeddruk\">", "text = <\"Bloeddruk -- systolisch\"> -- <<");
+        ADLHeader header = ADLHeader.scan(write("archetype.adls", commented));
+        assertNotNull(header);
+        assertEquals(List.of("en", "nl"), header.getLanguages());
+    }
+
+    @Test
+    void rejectsFilesThatAreNoArchetype() throws IOException {
+        assertNull(ADLHeader.scan(write("error.adls", "<html><body>Not found</body></html>")));
+        assertNull(ADLHeader.scan(write("empty.adls", "")));
+    }
+
+    @Test
+    void rejectsAnInvalidArchetypeId() throws IOException {
+        assertNull(ADLHeader.scan(write("archetype.adls", archetype.replace("openEHR-EHR-OBSERVATION.blood_pressure.v2.0.3", "blood pressure"))));
+    }
+
+    @Test
+    void rejectsArchetypesWithoutTermDefinitions() throws IOException {
+        assertNull(ADLHeader.scan(write("archetype.adls", archetype.substring(0, archetype.indexOf("terminology")))));
+        assertNull(ADLHeader.scan(write("archetype.adls", archetype.substring(0, archetype.indexOf("    term_definitions"))+"annotations\n")));
+    }
+
+    @Test
+    void rejectsTruncatedTermDefinitions() throws IOException {
+        assertNull(ADLHeader.scan(write("archetype.adls", archetype.substring(0, archetype.indexOf("[\"nl\"]")))));
+    }
+
+    /**
+     * writes a file to the temporary directory
+     * @param fileName name of the file
+     * @param content  content of the file
+     * @return the file
+     * @throws IOException issue writing the file
+     */
+    private File write(String fileName, String content) throws IOException {
+        return Files.writeString(tempDir.resolve(fileName), content, StandardCharsets.UTF_8).toFile();
+    }
+}
@@ -0,0 +1,88 @@
+package icrfgenerator.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheFileUtilsTest {
+    private static final String content = "<dataset id=\"2.16.840.1.113883.2.4.3.11.60.40.1\">datum, ü</dataset>\n".repeat(1000);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsUncompressedFiles() throws IOException {
+        assertEquals(content, read(write("plain.xml", content.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void readsCompressedFiles() throws IOException {
+        File compressed = tempDir.resolve("compressed.xml").toFile();
+        CacheFileUtils.compress(write("plain.xml", content.getBytes(StandardCharsets.UTF_8)), compressed);
+        assertTrue(compressed.length()<content.length());
+        assertEquals(content, read(compressed));
+    }
+
+    @Test
+    void recognisesCompressionByContentRatherThanName() throws IOException {
+        File compressed = tempDir.resolve("compressed.gz").toFile();
+        CacheFileUtils.compress(write("plain.xml", content.getBytes(StandardCharsets.UTF_8)), compressed);
+        File renamed = tempDir.resolve("renamed.xml").toFile();
+        assertTrue(compressed.renameTo(renamed));
+        assertEquals(content, read(renamed));
+        assertEquals(content, read(write("plain.gz", content.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void readsFilesShorterThanTheMagicNumber() throws IOException {
+        assertEquals("", read(write("empty.xml", new byte[0])));
+        assertEquals("a", read(write("short.xml", new byte[]{'a'})));
+        // only the first byte of the magic number
+        byte [] partialMagic = {(byte) 0x1f};
+        try (InputStream inputStream = CacheFileUtils.openInputStream(write("partial.xml", partialMagic))) {
+            assertEquals(0x1f, inputStream.read());
+            assertEquals(-1, inputStream.read());
+        }
+    }
+
+    @Test
+    void rejectsTruncatedCompressedFiles() throws IOException {
+        File compressed = tempDir.resolve("compressed.xml").toFile();
+        CacheFileUtils.compress(write("plain.xml", content.getBytes(StandardCharsets.UTF_8)), compressed);
+        byte [] truncated = Files.readAllBytes(compressed.toPath());
+        File truncatedFile = write("truncated.xml", Arrays.copyOf(truncated, truncated.length/2));
+        assertThrows(IOException.class, () -> read(truncatedFile));
+    }
+
+    /**
+     * writes a file to the temporary directory
+     * @param fileName name of the file
+     * @param bytes    content of the file
+     * @return the file
+     * @throws IOException issue writing the file
+     */
+    private File write(String fileName, byte [] bytes) throws IOException {
+        return Files.write(tempDir.resolve(fileName), bytes).toFile();
+    }
+
+    /**
+     * reads a cached file
+     * @param file the file
+     * @return the content of the file
+     * @throws IOException issue reading the file
+     */
+    private static String read(File file) throws IOException {
+        try (InputStream inputStream = CacheFileUtils.openInputStream(file)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
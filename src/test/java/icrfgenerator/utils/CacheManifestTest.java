@@ -0,0 +1,121 @@
+package icrfgenerator.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheManifestTest {
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void evictsTheLeastRecentlyUsedFiles() throws IOException {
+        File oldest = createFile("oldest.xml", 100);
+        File middle = createFile("middle.xml", 100);
+        File newest = createFile("newest.xml", 100);
+        writeManifest("oldest.xml.fetchTime=1000", "middle.xml.fetchTime=2000", "newest.xml.lastAccess=3000", "newest.xml.fetchTime=500");
+
+        new CacheManifest(cacheDir.toFile()).evict(250);
+
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+        // what is known about removed files is forgotten
+        CacheManifest reread = new CacheManifest(cacheDir.toFile());
+        assertEquals(oldest.lastModified(), reread.getFetchTime(oldest));
+        assertEquals(2000, reread.getFetchTime(middle));
+    }
+
+    @Test
+    void keepsFilesWithinTheMaximumSize() throws IOException {
+        File first = createFile("first.xml", 100);
+        File second = createFile("second.xml", 100);
+        writeManifest("first.xml.fetchTime=1000", "second.xml.fetchTime=2000");
+
+        CacheManifest cacheManifest = new CacheManifest(cacheDir.toFile());
+        cacheManifest.evict(200);
+        cacheManifest.evict(0);
+
+        assertTrue(first.exists());
+        assertTrue(second.exists());
+    }
+
+    @Test
+    void neverEvictsFilesUsedDuringThisRun() throws IOException {
+        File used = createFile("used.xml", 100);
+        File unused = createFile("unused.xml", 100);
+        writeManifest("used.xml.fetchTime=1000", "unused.xml.fetchTime=2000");
+
+        CacheManifest cacheManifest = new CacheManifest(cacheDir.toFile());
+        cacheManifest.setAccessed(used);
+        cacheManifest.evict(100);
+
+        assertTrue(used.exists());
+        assertFalse(unused.exists());
+    }
+
+    @Test
+    void neverEvictsIncompleteDownloads() throws IOException {
+        File partFile = createFile("download.xml.part", 100);
+        File file = createFile("other.xml", 100);
+        writeManifest("download.xml.part.fetchTime=1000", "other.xml.fetchTime=2000");
+
+        new CacheManifest(cacheDir.toFile()).evict(100);
+
+        assertTrue(partFile.exists());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void ignoresFilesNotInTheManifest() throws IOException {
+        File unknown = createFile("unknown.xml", 1000);
+        File known = createFile("known.xml", 100);
+        writeManifest("known.xml.fetchTime=1000");
+
+        new CacheManifest(cacheDir.toFile()).evict(100);
+
+        assertTrue(unknown.exists());
+        assertTrue(known.exists());
+    }
+
+    @Test
+    void storesAccessTimesWhenEvicting() throws IOException {
+        File file = createFile("file.xml", 100);
+        writeManifest("file.xml.fetchTime=1000");
+
+        CacheManifest cacheManifest = new CacheManifest(cacheDir.toFile());
+        cacheManifest.setAccessed(file);
+        long lastAccess = cacheManifest.getLastAccess(file);
+        assertEquals(1000, new CacheManifest(cacheDir.toFile()).getLastAccess(file));
+
+        cacheManifest.evict(1000);
+        assertEquals(lastAccess, new CacheManifest(cacheDir.toFile()).getLastAccess(file));
+    }
+
+    /**
+     * creates a file in the cache directory
+     * @param fileName name of the file
+     * @param size     size of the file (bytes)
+     * @return the file
+     * @throws IOException issue writing the file
+     */
+    private File createFile(String fileName, int size) throws IOException {
+        return Files.write(cacheDir.resolve(fileName), new byte[size]).toFile();
+    }
+
+    /**
+     * writes the manifest of the cache directory
+     * @param properties the lines of the manifest
+     * @throws IOException issue writing the manifest
+     */
+    private void writeManifest(String... properties) throws IOException {
+        Files.writeString(cacheDir.resolve("cacheManifest.properties"), String.join("\n", properties), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package icrfgenerator.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeOrderingTest {
+
+    @Test
+    void integersComeFirstInNumericalOrder(){
+        List<String> codes = new ArrayList<>(List.of("b", "10", "A", "2", "-1", "a", "1"));
+        CodeOrdering.sort(codes, Function.identity());
+        assertEquals(List.of("-1", "1", "2", "10", "A", "a", "b"), codes);
+    }
+
+    @Test
+    void sortMatchesTheComparator(){
+        List<String> codes = Arrays.asList("x10", "007", "7", "+7", "X2", "", "2147483648", "-0", "0", "abc", "ABC", "Abc");
+        List<String> sorted = new ArrayList<>(codes);
+        CodeOrdering.sort(sorted, Function.identity());
+        List<String> comparatorSorted = new ArrayList<>(codes);
+        comparatorSorted.sort(CodeOrdering.getComparator());
+        assertEquals(comparatorSorted, sorted);
+    }
+
+    @Test
+    void equalValuesAreOrderedByTheirText(){
+        // codes with the same value or the same text ignoring case are only equal if their text is the same
+        assertTrue(CodeOrdering.getComparator().compare("007", "7")!=0);
+        assertTrue(CodeOrdering.getComparator().compare("abc", "ABC")!=0);
+        assertEquals(0, CodeOrdering.getComparator().compare("7", "7"));
+    }
+
+    @Test
+    void sortsElementsByTheirCode(){
+        List<String[]> items = new ArrayList<>();
+        items.add(new String[]{"12", "twelve"});
+        items.add(new String[]{"other", "other"});
+        items.add(new String[]{"3", "three"});
+        CodeOrdering.sort(items, t -> t[0]);
+        assertEquals("three", items.get(0)[1]);
+        assertEquals("twelve", items.get(1)[1]);
+        assertEquals("other", items.get(2)[1]);
+    }
+
+    @Test
+    void isIntegerAcceptsWhatIntegerParseIntAccepts(){
+        String [] codes = {"0", "42", "-42", "+42", "007", "00000000001", "0000000000000002147483647", "2147483647",
+                "2147483648", "-2147483648", "-2147483649", "99999999999999999999", "", "-", "+", "1.0", "1e3",
+                "12a", " 1", "--1", "١٢"};
+        for(String code:codes){
+            assertEquals(parses(code), CodeOrdering.isInteger(code), "isInteger(\""+code+"\")");
+        }
+    }
+
+    /**
+     * returns whether Integer.parseInt accepts a code
+     * @param code the code
+     * @return true/false
+     */
+    private static boolean parses(String code){
+        try {
+            Integer.parseInt(code);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}